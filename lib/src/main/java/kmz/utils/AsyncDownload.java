@@ -0,0 +1,319 @@
+package kmz.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import android.util.Log;
+import okhttp3.OkHttpClient;
+
+/**
+ * Download the response into a file, resuming the interrupted downloads.
+ * <p>
+ * The response is written through a file channel into a `.part` file next to the target,
+ * which is renamed to the target after the length and the checksum of the content are verified.
+ * If a partial file exists, the download continues it with a `Range` request conditioned with `If-Range`
+ * on the validator of the previous response, so the server sends the whole file if it was changed.
+ * Concurrent downloads of the same file fail, the partial file is written by one of them.
+ */
+public abstract class AsyncDownload extends AsyncRequest<File> {
+	private static final String TAG = AsyncDownload.class.getSimpleName();
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final String HEADER_RANGE = "Range";
+	private static final String HEADER_IF_RANGE = "If-Range";
+	private static final String HEADER_CONTENT_RANGE = "Content-Range";
+	private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+	private static final String HEADER_ETAG = "ETag";
+	private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+	private static final String HEADER_CONTENT_LENGTH = "Content-Length";
+	private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+	// the partial files written by the downloads in progress
+	private static final Set<String> downloading = Collections.synchronizedSet(new HashSet<String>());
+
+	public AsyncDownload(URL url, File file) throws IOException {
+		this(url, file, getSharedClient());
+	}
+
+	public AsyncDownload(URL url, File file, OkHttpClient client) throws IOException {
+		super(Method.GET, url, client);
+		this.file = file;
+		this.partial = new File(file.getPath() + ".part");
+		this.validator = new File(file.getPath() + ".part.validator");
+
+		// the ranges are offsets in the content, it must not be compressed
+		this.setRequestHeader(HEADER_ACCEPT_ENCODING, "identity");
+		// do not copy the large files into the http cache
+		this.useHttpCache(false);
+	}
+
+	/**
+	 * Verify the length of the downloaded file, in addition to the length reported by the server.
+	 */
+	public AsyncDownload setExpectedLength(long length) {
+		this.expectedLength = length;
+		return this;
+	}
+
+	/**
+	 * Verify the checksum of the downloaded file.
+	 * @param algorithm the name of the digest algorithm, like `SHA-256`
+	 * @param checksum the expected digest in hexadecimal
+	 */
+	public AsyncDownload setChecksum(String algorithm, String checksum) throws NoSuchAlgorithmException {
+		this.digest = MessageDigest.getInstance(algorithm);
+		this.checksum = checksum;
+		return this;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the number of bytes continued from a previous download, available after the request completed.
+	 */
+	public long getResumedLength() {
+		return resumed;
+	}
+
+	@Override
+	protected File doInBackground(Object... param) {
+		try {
+			File result = super.doInBackground(param);
+			if (this.locked && this.getResponseCode() == HTTP_RANGE_NOT_SATISFIABLE) {
+				// the partial file is not a prefix of the content, start over the next time
+				this.deletePartial();
+			}
+			return result;
+		}
+		finally {
+			if (this.locked) {
+				downloading.remove(this.partial.getAbsolutePath());
+				this.locked = false;
+			}
+		}
+	}
+
+	/**
+	 * Lock the partial file, and continue it if it has the validator of the previous response.
+	 */
+	@Override
+	protected void prepareRequest() throws Exception {
+		if (!this.locked) {
+			if (!downloading.add(this.partial.getAbsolutePath())) {
+				throw new IOException("already downloading: " + this.file);
+			}
+			this.locked = true;
+		}
+		String validator = this.readValidator();
+		long length = this.partial.length();
+		if (validator != null && length > 0) {
+			this.setRequestHeader(HEADER_RANGE, "bytes=" + length + "-");
+			this.setRequestHeader(HEADER_IF_RANGE, validator);
+			this.offset = length;
+		}
+	}
+
+	@Override
+	protected File readResponse(InputStream in) throws Exception {
+		HttpURLConnection connection = this.getConnection();
+		long offset = 0;
+		// the length of the large files does not fit into getContentLength()
+		long length = parseLength(connection.getHeaderField(HEADER_CONTENT_LENGTH));
+		if (connection.getResponseCode() == HttpURLConnection.HTTP_PARTIAL) {
+			// Content-Range: bytes <first>-<last>/<length>, up to the end of the content
+			String range = connection.getHeaderField(HEADER_CONTENT_RANGE);
+			long[] values = parseContentRange(range);
+			if (values == null || values[0] != this.offset || values[2] >= 0 && values[1] != values[2] - 1
+					|| length >= 0 && length != values[1] - values[0] + 1) {
+				this.deletePartial();
+				throw new IOException("invalid content range: " + range);
+			}
+			offset = values[0];
+			length = values[2];
+		}
+		else if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+			throw new IOException("unexpected response: " + connection.getResponseCode());
+		}
+
+		// save the validator first, so the download can be resumed if it is interrupted
+		String validator = connection.getHeaderField(HEADER_ETAG);
+		if (validator == null || validator.startsWith("W/")) {
+			// weak entity tags can not be used with `If-Range`
+			validator = connection.getHeaderField(HEADER_LAST_MODIFIED);
+		}
+		this.writeValidator(validator);
+
+		byte[] buffer = new byte[BUFFER_SIZE];
+		try (RandomAccessFile output = new RandomAccessFile(this.partial, "rw")) {
+			FileChannel channel = output.getChannel();
+			channel.truncate(offset);
+			if (this.digest != null) {
+				// include the downloaded part in the checksum
+				this.digest.reset();
+				try (InputStream prefix = new FileInputStream(this.partial)) {
+					for (int n; (n = prefix.read(buffer)) > 0; ) {
+						this.digest.update(buffer, 0, n);
+					}
+				}
+			}
+
+			channel.position(offset);
+			ByteBuffer bytes = ByteBuffer.wrap(buffer);
+			for (int n; (n = in.read(buffer)) >= 0; ) {
+				if (this.digest != null) {
+					this.digest.update(buffer, 0, n);
+				}
+				bytes.clear().limit(n);
+				while (bytes.hasRemaining()) {
+					channel.write(bytes);
+				}
+			}
+			this.resumed = offset;
+
+			long size = channel.size();
+			if (length >= 0 && size != length || this.expectedLength >= 0 && size != this.expectedLength) {
+				this.deletePartial();
+				throw new IOException("invalid length: " + size);
+			}
+		}
+
+		if (this.digest != null) {
+			String checksum = toHex(this.digest.digest());
+			if (!checksum.equalsIgnoreCase(this.checksum)) {
+				this.deletePartial();
+				throw new IOException("invalid checksum: " + checksum);
+			}
+		}
+
+		if (this.file.exists() && !this.file.delete() || !this.partial.renameTo(this.file)) {
+			throw new IOException("failed to rename: " + this.partial);
+		}
+		this.deleteValidator();
+		return this.file;
+	}
+
+	/**
+	 * Returns the first and last position and the total length from the `Content-Range` header, or null if invalid.
+	 */
+	private static long[] parseContentRange(String value) {
+		if (value == null || !value.startsWith("bytes ")) {
+			return null;
+		}
+		int dash = value.indexOf('-');
+		int slash = value.indexOf('/');
+		if (dash < 0 || slash < dash) {
+			return null;
+		}
+		try {
+			long first = Long.parseLong(value.substring(6, dash).trim());
+			long last = Long.parseLong(value.substring(dash + 1, slash).trim());
+			String total = value.substring(slash + 1).trim();
+			if (first < 0 || last < first) {
+				return null;
+			}
+			return new long[] {first, last, "*".equals(total) ? -1 : Long.parseLong(total)};
+		}
+		catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the value of the `Content-Length` header, or -1 if unknown.
+	 */
+	private static long parseLength(String value) {
+		if (value == null) {
+			return -1;
+		}
+		try {
+			long result = Long.parseLong(value.trim());
+			return result >= 0 ? result : -1;
+		}
+		catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		char[] digits = "0123456789abcdef".toCharArray();
+		char[] result = new char[2 * bytes.length];
+		for (int i = 0; i < bytes.length; i += 1) {
+			result[2 * i] = digits[(bytes[i] >> 4) & 0xf];
+			result[2 * i + 1] = digits[bytes[i] & 0xf];
+		}
+		return new String(result);
+	}
+
+	private String readValidator() {
+		if (!this.validator.exists()) {
+			return null;
+		}
+		try (InputStream in = new FileInputStream(this.validator)) {
+			byte[] buffer = new byte[(int) this.validator.length()];
+			int length = 0;
+			for (int n; length < buffer.length && (n = in.read(buffer, length, buffer.length - length)) > 0; ) {
+				length += n;
+			}
+			String result = new String(Arrays.copyOf(buffer, length), StandardCharsets.UTF_8).trim();
+			return result.isEmpty() ? null : result;
+		}
+		catch (IOException e) {
+			Log.w(TAG, "failed to read validator: " + this.validator, e);
+			return null;
+		}
+	}
+
+	private void writeValidator(String value) throws IOException {
+		if (value == null) {
+			// the download can not be resumed
+			this.deleteValidator();
+			return;
+		}
+		try (OutputStream out = new FileOutputStream(this.validator)) {
+			out.write(value.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	private void deleteValidator() {
+		if (this.validator.exists() && !this.validator.delete()) {
+			Log.w(TAG, "failed to delete: " + this.validator);
+		}
+	}
+
+	private void deletePartial() {
+		if (this.partial.exists() && !this.partial.delete()) {
+			Log.w(TAG, "failed to delete: " + this.partial);
+		}
+		this.deleteValidator();
+	}
+
+	private final File file;
+	private final File partial;
+	private final File validator;
+	private long expectedLength = -1;
+	private MessageDigest digest = null;
+	private String checksum = null;
+	private long resumed = 0;
+	// the position requested in the content, and the lock of the partial file held by this download
+	private long offset = 0;
+	private boolean locked = false;
+}
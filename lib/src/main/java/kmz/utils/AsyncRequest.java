@@ -1,20 +1,54 @@
 package kmz.utils;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
+import okhttp3.Cache;
+import okhttp3.ConnectionPool;
 import okhttp3.OkHttpClient;
 import okhttp3.OkUrlFactory;
 
@@ -26,8 +60,80 @@ public abstract class AsyncRequest<Entity> extends AsyncTask<Object, Void, Entit
 	private static final int READ_TIMEOUT = 20000;
 
 	private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+	private static final String HEADER_CONTENT_TYPE = "Content-Type";
+	private static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
 	private static final String CONTENT_ENCODING_GZIP = "gzip";
 
+	// source of the response, set by okHttp: `NETWORK 200`, `CACHE 200`, `CONDITIONAL_CACHE 304`, ...
+	private static final String HEADER_RESPONSE_SOURCE = "OkHttp-Response-Source";
+	private static final String SOURCE_CACHE = "CACHE";
+	private static final String SOURCE_CONDITIONAL_CACHE = "CONDITIONAL_CACHE";
+
+	// statistics of the http cache
+	private static final AtomicLong cacheHits = new AtomicLong();
+	private static final AtomicLong cacheMisses = new AtomicLong();
+	private static final AtomicLong cacheRevalidations = new AtomicLong();
+
+	private static final String HEADER_ETAG = "ETag";
+	private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+	private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+	private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+	// the entities of the requests with credentials are not cached, these headers select the cached entity
+	private static final String HEADER_AUTHORIZATION = "Authorization";
+	private static final String HEADER_COOKIE = "Cookie";
+	private static final String[] VARY_HEADERS = {"Accept", "Accept-Language"};
+
+	// decoded entities of the responses having a validator, keyed by the type of the request, the url and the headers
+	private static final LinkedHashMap<String, CachedEntity> entityCache = new LinkedHashMap<>(16, .75f, true);
+	private static long entityCacheMaxWeight = 0;
+	private static long entityCacheWeight = 0;
+	private static final AtomicLong entityCacheHits = new AtomicLong();
+
+	// identical requests in flight, waiting for the result of the first one
+	private static final Map<String, InFlight> inFlight = new ConcurrentHashMap<>();
+	private static final AtomicLong coalescedRequests = new AtomicLong();
+
+	// retried and hedged requests, the hedged ones are sent on the threads of the hedge executor
+	private static final String HEADER_RETRY_AFTER = "Retry-After";
+	private static final AtomicLong retriedRequests = new AtomicLong();
+	private static final AtomicLong hedgedRequests = new AtomicLong();
+	private static Executor hedgeExecutor = null;
+
+	// streaming the request body: the length is known, or it is sent in chunks
+	private static final int STREAM_BUFFERED = -2;
+	private static final int STREAM_CHUNKED = -1;
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	// waiting threads check if the request was cancelled at this interval
+	private static final long CANCEL_POLL_MILLIS = 100;
+
+	// aborts the requests exceeding the deadline
+	private static ScheduledThreadPoolExecutor watchdog = null;
+
+	// defaults of the shared client, same as the defaults of okHttp
+	private static final int MAX_IDLE_CONNECTIONS = 5;
+	private static final long KEEP_ALIVE_DURATION = 5 * 60 * 1000;
+	private static final int MAX_REQUESTS_PER_HOST = 5;
+
+	// shared by the requests, to reuse the connection pool and the kept alive connections
+	private static OkHttpClient sharedClient = null;
+	private static OkUrlFactory sharedFactory = null;
+
+	// limit the concurrent requests to the same host
+	private static volatile int maxRequestsPerHost = MAX_REQUESTS_PER_HOST;
+	private static final Map<String, HostLimit> hostLimits = new ConcurrentHashMap<>();
+
+	// default executor of the submitted requests, the idle threads are stopped after a while
+	private static final int MAX_THREADS = 8;
+	private static final long THREAD_KEEP_ALIVE = 30 * 1000;
+	private static Executor defaultExecutor = null;
+
+	// atomic transition of the state, the requests can be submitted from multiple threads
+	@SuppressWarnings("rawtypes")
+	private static final AtomicReferenceFieldUpdater<AsyncRequest, State> STATE =
+			AtomicReferenceFieldUpdater.newUpdater(AsyncRequest.class, State.class, "state");
+
 	public enum State {
 		INIT, // before connect
 		SEND, // sending request body
@@ -36,37 +142,275 @@ public abstract class AsyncRequest<Entity> extends AsyncTask<Object, Void, Entit
 	}
 
 	public enum Method {
-		OPTIONS(false),
-		GET(false),
-		HEAD(false),
-		POST(true),
-		PUT(true),
-		DELETE(true),
-		TRACE(false),
-		PATCH(true);
-
-		Method(boolean hasPayload) {
+		OPTIONS(false, true),
+		GET(false, true),
+		HEAD(false, true),
+		POST(true, false),
+		PUT(true, true),
+		DELETE(true, true),
+		TRACE(false, true),
+		PATCH(true, false);
+
+		Method(boolean hasPayload, boolean idempotent) {
 			this.hasPayload = hasPayload;
+			this.idempotent = idempotent;
 		}
 		private final boolean hasPayload;
+		// can be sent again without side effects, so it can be retried
+		private final boolean idempotent;
 
 		//GET, POST, PUT, PATCH, DELETE, COPY, HEAD, OPTIONS, LINK, UNLINK, PURGE, LOCK, UNLOCK, PROPFIND, VIEW
 	}
 
+	public enum Compression {
+		GZIP("gzip"),
+		DEFLATE("deflate");
+
+		Compression(String encoding) {
+			this.encoding = encoding;
+		}
+		// value of the `Content-Encoding` header
+		private final String encoding;
+	}
+
+	/**
+	 * Create a request using the shared client.
+	 */
 	public AsyncRequest(final Method method, URL url) throws IOException {
+		this(method, url, getSharedFactory());
+	}
+
+	/**
+	 * Create a request using the given client, instead of the shared one.
+	 */
+	public AsyncRequest(final Method method, URL url, OkHttpClient client) throws IOException {
+		this(method, url, new OkUrlFactory(client));
+	}
+
+	private AsyncRequest(final Method method, URL url, OkUrlFactory factory) throws IOException {
 		super();
 		this.url = url;
 		this.method = method;
 		//this.connection = (HttpURLConnection) this.url.openConnection();
 
-		// using okHttp connection.disconnect closes the connection.
-
-		OkHttpClient client = new OkHttpClient();
-		OkUrlFactory factory = new OkUrlFactory(client);
+		// using okHttp connection.disconnect closes the connection,
+		// so it is called only on errors, otherwise the connection is returned to the pool.
+		this.factory = factory;
+		this.client = factory.client();
 		this.connection = factory.open(this.url);
 	}
 
-	protected void sendRequest(OutputStream out) throws Exception {}
+	/**
+	 * Returns the client shared by the requests, created with the default configuration on the first use.
+	 */
+	public static synchronized OkHttpClient getSharedClient() {
+		if (sharedClient == null) {
+			setSharedClient(new OkHttpClient.Builder()
+					.connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_DURATION, TimeUnit.MILLISECONDS))
+					.build()
+			);
+		}
+		return sharedClient;
+	}
+
+	/**
+	 * Replace the client shared by the requests created after this call.
+	 */
+	public static synchronized void setSharedClient(OkHttpClient client) {
+		sharedClient = client;
+		sharedFactory = new OkUrlFactory(client);
+	}
+
+	/**
+	 * Configure the connection pool of the shared client, and the limit of the concurrent requests to the same host.
+	 * @param maxIdleConnections the number of idle connections kept alive
+	 * @param keepAliveMillis the time after the idle connections are closed
+	 * @param maxRequestsPerHost the number of concurrent requests to the same host
+	 */
+	public static synchronized void configure(int maxIdleConnections, long keepAliveMillis, int maxRequestsPerHost) {
+		setSharedClient(getSharedClient().newBuilder()
+				.connectionPool(new ConnectionPool(maxIdleConnections, keepAliveMillis, TimeUnit.MILLISECONDS))
+				.build()
+		);
+		// resize the limits in place, the running requests release their permits to the same semaphores
+		AsyncRequest.maxRequestsPerHost = maxRequestsPerHost;
+		for (HostLimit limit : hostLimits.values()) {
+			limit.resize();
+		}
+	}
+
+	private static synchronized OkUrlFactory getSharedFactory() {
+		getSharedClient();
+		return sharedFactory;
+	}
+
+	/**
+	 * Enable the http cache of the shared client, responses are stored and revalidated as the
+	 * `Cache-Control`, `ETag` and `Last-Modified` headers allow, the least recently used ones are evicted.
+	 * @param directory the directory of the cached responses, exclusively used by the cache
+	 * @param maxSize the maximum size of the cache in bytes
+	 */
+	public static synchronized void setHttpCache(File directory, long maxSize) {
+		setSharedClient(getSharedClient().newBuilder()
+				.cache(new Cache(directory, maxSize))
+				.build()
+		);
+	}
+
+	/**
+	 * Number of responses served from the cache, without a request, or revalidated with a `304 Not Modified` response.
+	 */
+	public static long getCacheHitCount() {
+		return cacheHits.get();
+	}
+
+	/**
+	 * Number of responses downloaded from the network.
+	 */
+	public static long getCacheMissCount() {
+		return cacheMisses.get();
+	}
+
+	/**
+	 * Number of conditional requests sent to revalidate cached responses, modified or not.
+	 */
+	public static long getCacheRevalidationCount() {
+		return cacheRevalidations.get();
+	}
+
+	/**
+	 * Enable the cache of the decoded entities, unchanged responses are not read and parsed again.
+	 * <p>
+	 * The entities of the successful GET requests with an `ETag` or `Last-Modified` header are cached.
+	 * If the response is served by the http cache or revalidated with a `304 Not Modified` response,
+	 * {@link #onResult(Object)} receives the cached entity, without calling {@link #readResponse(InputStream)}.
+	 * Without the http cache the conditional headers are sent by the request.
+	 * The cached entities are shared by the requests, so they must not be modified.
+	 * The entities are keyed by the url and the `Accept` and `Accept-Language` headers,
+	 * the requests with an `Authorization` or `Cookie` header are not cached.
+	 * @param maxWeight the maximum total size of the responses of the cached entities in bytes, 0 to disable
+	 */
+	public static void setEntityCache(long maxWeight) {
+		synchronized (entityCache) {
+			entityCacheMaxWeight = maxWeight;
+			trimEntityCache();
+		}
+	}
+
+	/**
+	 * Number of responses delivered from the cache of the decoded entities.
+	 */
+	public static long getEntityCacheHitCount() {
+		return entityCacheHits.get();
+	}
+
+	/**
+	 * Number of requests completed with the result of an identical request in flight.
+	 * @see #coalesce()
+	 */
+	public static long getCoalescedCount() {
+		return coalescedRequests.get();
+	}
+
+	/**
+	 * Number of the attempts retried with the retry policy.
+	 */
+	public static long getRetryCount() {
+		return retriedRequests.get();
+	}
+
+	/**
+	 * Number of the hedged requests, sent again because the response was late.
+	 */
+	public static long getHedgeCount() {
+		return hedgedRequests.get();
+	}
+
+	private static synchronized ScheduledThreadPoolExecutor getWatchdog() {
+		if (watchdog == null) {
+			watchdog = new ScheduledThreadPoolExecutor(1, runnable -> {
+				Thread thread = new Thread(runnable, TAG + "-watchdog");
+				thread.setDaemon(true);
+				return thread;
+			});
+			watchdog.setRemoveOnCancelPolicy(true);
+		}
+		return watchdog;
+	}
+
+	// bounded without queue, the requests are not hedged when all the threads are busy
+	private static synchronized Executor getHedgeExecutor() {
+		if (hedgeExecutor == null) {
+			final AtomicInteger threads = new AtomicInteger();
+			hedgeExecutor = new ThreadPoolExecutor(0, 2 * MAX_THREADS,
+					THREAD_KEEP_ALIVE, TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>(), runnable -> {
+						Thread thread = new Thread(runnable, TAG + "-hedge-" + threads.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+			);
+		}
+		return hedgeExecutor;
+	}
+
+	/**
+	 * Returns the executor used by {@link #submit()}, a bounded thread pool by default.
+	 */
+	public static synchronized Executor getDefaultExecutor() {
+		if (defaultExecutor == null) {
+			final AtomicInteger threads = new AtomicInteger();
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+					THREAD_KEEP_ALIVE, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), runnable -> {
+						Thread thread = new Thread(runnable, TAG + "-" + threads.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+			);
+			executor.allowCoreThreadTimeOut(true);
+			defaultExecutor = executor;
+		}
+		return defaultExecutor;
+	}
+
+	/**
+	 * Replace the executor used by {@link #submit()}, like a larger pool, or an executor of virtual threads.
+	 */
+	public static synchronized void setDefaultExecutor(Executor executor) {
+		defaultExecutor = executor;
+	}
+
+	private static Semaphore getHostLimit(String host) {
+		HostLimit result = hostLimits.get(host);
+		if (result == null) {
+			HostLimit semaphore = new HostLimit(maxRequestsPerHost);
+			result = hostLimits.putIfAbsent(host, semaphore);
+			if (result == null) {
+				result = semaphore;
+			}
+		}
+		if (result.limit != maxRequestsPerHost) {
+			// created while the limit was configured
+			result.resize();
+		}
+		return result;
+	}
+
+	/**
+	 * Prepare the request on the worker thread before connecting, like setting the headers depending on local files.
+	 * The request fails with the thrown exception.
+	 */
+	protected void prepareRequest() throws Exception {
+	}
+
+	/**
+	 * Write the body of the request, by default the one set with {@link #setBody(Body)}.
+	 * When the request is retried, this method is called again for each attempt.
+	 */
+	protected void sendRequest(OutputStream out) throws Exception {
+		if (this.body != null) {
+			this.body.writeTo(out);
+		}
+	}
 
 	protected abstract Entity readResponse(InputStream in) throws Exception;
 
@@ -97,7 +441,117 @@ public abstract class AsyncRequest<Entity> extends AsyncTask<Object, Void, Entit
 	public String getRequestHeader(String key) {
 		return this.connection.getRequestProperty(key);
 	}
-	// TODO: useHttpCache
+	/**
+	 * Share the response with the identical requests in flight.
+	 * <p>
+	 * Requests without payload having the same type, method, url and headers, started while the first one
+	 * is in flight, wait for its result instead of connecting: the response code, the headers, the error
+	 * and the entity returned by {@link #readResponse(InputStream)} are shared, so the entity must not be modified.
+	 */
+	public AsyncRequest coalesce() {
+		this.assertState(State.INIT);
+		this.coalesce = true;
+		return this;
+	}
+	/**
+	 * Retry the request on failures, only the idempotent methods are retried.
+	 * The response body is never read twice: the errors of {@link #readResponse(InputStream)} are not retried.
+	 * @param policy the retry policy, or null to send the request only once
+	 */
+	public AsyncRequest setRetryPolicy(RetryPolicy policy) {
+		this.assertState(State.INIT);
+		this.retryPolicy = policy;
+		return this;
+	}
+	/**
+	 * Set the timeouts of the request in milliseconds, 0 means no timeout.
+	 * @param connectMillis timeout of connecting to the server
+	 * @param readMillis maximum time between two reads of the response
+	 * @param writeMillis maximum time between two writes of the request
+	 */
+	public AsyncRequest setTimeouts(int connectMillis, int readMillis, int writeMillis) throws IOException {
+		this.assertState(State.INIT);
+		this.connectTimeout = connectMillis;
+		this.readTimeout = readMillis;
+		OkHttpClient client = this.factory.client();
+		if (client.writeTimeoutMillis() != writeMillis) {
+			// the write timeout can be set only on the client, use a derived one sharing the connection pool
+			this.factory = new OkUrlFactory(client.newBuilder().writeTimeout(writeMillis, TimeUnit.MILLISECONDS).build());
+			this.connection = this.open(new LinkedHashMap<>(this.connection.getRequestProperties()));
+		}
+		return this;
+	}
+	/**
+	 * Limit the total time of the request: waiting for the host limit or the coalesced request,
+	 * connecting, sending, retrying, reading and parsing the response.
+	 * The connection is aborted when the deadline expires, and the request fails with a {@link SocketTimeoutException}.
+	 * @param millis the maximum duration of the request, 0 means no deadline
+	 */
+	public AsyncRequest setDeadline(long millis) {
+		this.assertState(State.INIT);
+		this.deadline = millis;
+		return this;
+	}
+	/**
+	 * Set the body of the request, streamed with its length, or in chunks if the length is unknown.
+	 */
+	public AsyncRequest setBody(Body body) {
+		this.assertState(State.INIT);
+		if (!this.method.hasPayload) {
+			throw new IllegalStateException(this.method + " has no body");
+		}
+		this.body = body;
+		if (body.contentType() != null && this.connection.getRequestProperty(HEADER_CONTENT_TYPE) == null) {
+			this.connection.setRequestProperty(HEADER_CONTENT_TYPE, body.contentType());
+		}
+		return this.setStreaming(body.contentLength());
+	}
+	/**
+	 * Stream the body written by {@link #sendRequest(OutputStream)} instead of buffering it before sending.
+	 * @param contentLength the exact length of the body, or -1 to send it in chunks
+	 */
+	public AsyncRequest setStreaming(long contentLength) {
+		this.assertState(State.INIT);
+		this.streaming = contentLength < 0 ? STREAM_CHUNKED : contentLength;
+		return this;
+	}
+	/**
+	 * Compress the body of the request with gzip, if it has at least 1 KiB.
+	 * @see #compressRequestBody(Compression, int, int)
+	 */
+	public AsyncRequest compressRequestBody() {
+		return this.compressRequestBody(Compression.GZIP, Deflater.DEFAULT_COMPRESSION, 1024);
+	}
+	/**
+	 * Compress the body of the request, the server must accept the encoding.
+	 * <p>
+	 * If the length of the streamed body is known, the small ones are not compressed,
+	 * the others are sent in chunks, as the compressed length is not known in advance.
+	 * Not streamed bodies are compressed after they are written, if they are large enough,
+	 * and sent with the compressed length.
+	 * @param compression the content encoding of the body
+	 * @param level the compression level, from 1 (fastest) to 9 (smallest), or -1 for the default
+	 * @param minSize the smaller bodies are sent without compression
+	 */
+	public AsyncRequest compressRequestBody(Compression compression, int level, int minSize) {
+		this.assertState(State.INIT);
+		if (!this.method.hasPayload) {
+			throw new IllegalStateException(this.method + " has no body");
+		}
+		if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)) {
+			throw new IllegalArgumentException("level: " + level);
+		}
+		this.compression = compression;
+		this.compressionLevel = level;
+		this.compressionMinSize = minSize;
+		return this;
+	}
+	public AsyncRequest useHttpCache(boolean useCache) {
+		this.assertState(State.INIT);
+		this.connection.setUseCaches(useCache);
+		this.useCache = useCache;
+		return this;
+	}
 
 	// cancel
 	public void setCancelable() {
@@ -116,55 +570,116 @@ public abstract class AsyncRequest<Entity> extends AsyncTask<Object, Void, Entit
 	}
 	public String getResponseHeader(String key) {
 		this.assertState(State.DONE);
+		if (this.coalesced != null) {
+			// the connection of this request was not used, the response was received by an other one
+			List<String> values = this.coalesced.headers.get(key);
+			return values == null || values.isEmpty() ? null : values.get(values.size() - 1);
+		}
 		return this.connection.getHeaderField(key);
 	}
+	public boolean isCachedEntity() {
+		this.assertState(State.DONE);
+		return this.cachedEntity;
+	}
+	/**
+	 * Returns the connection receiving the response, while it is read by {@link #readResponse(InputStream)}.
+	 */
+	protected HttpURLConnection getConnection() {
+		this.assertState(State.READ);
+		return this.connection;
+	}
+	public int getAttemptCount() {
+		this.assertState(State.DONE);
+		return this.attempts;
+	}
 
 	// implementation
 	@Override
 	protected Entity doInBackground(Object... param) {
+		this.start();
+		if (this.coalesce && !this.method.hasPayload) {
+			return this.coalesced();
+		}
+		return this.execute();
+	}
+
+	private Entity execute() {
 		InputStream in = null;
-		OutputStream out = null;
+		ScheduledFuture<?> expiration = null;
 		try {
 			this.state = State.SEND;
-			if (this.isCancelled()) {
-				throw new InterruptedIOException();
+			if (this.deadline > 0) {
+				expiration = getWatchdog().schedule(this::expire, Math.max(0, this.remaining()), TimeUnit.MILLISECONDS);
 			}
+			if (this.isAborted()) {
+				throw this.aborted();
+			}
+			Semaphore limit = getHostLimit(this.url.getHost());
+			this.acquire(limit);
+			this.hostLimit = limit;
 			// open connection
-			this.connection.setConnectTimeout(CONNECT_TIMEOUT);
-			this.connection.setReadTimeout(READ_TIMEOUT);
-			this.connection.setRequestMethod(this.method.name());
+			this.configure(this.connection);
+			this.prepareRequest();
 			// set or override headers
 			if (this.acceptGzip) {
 				this.connection.setRequestProperty(HEADER_ACCEPT_ENCODING, CONTENT_ENCODING_GZIP);
 			}
+			// the request headers can not be read after connecting
+			String cacheKey = this.getEntityCacheKey();
+			CachedEntity cached = getCachedEntity(cacheKey);
+			boolean conditional = false;
+			Map<String, List<String>> unconditional = null;
+			if (cached != null && (this.client.cache() == null || !this.useCache)) {
+				// no http cache to revalidate the response, send the condition
+				String header = cached.etag ? HEADER_IF_NONE_MATCH : HEADER_IF_MODIFIED_SINCE;
+				if (this.connection.getRequestProperty(header) == null) {
+					unconditional = new LinkedHashMap<>(this.connection.getRequestProperties());
+					this.connection.setRequestProperty(header, cached.validator);
+					conditional = true;
+				}
+			}
 			if (this.debugStream != null) {
 				this.debugStream.onConnect(connection);
 			}
-			this.connection.connect();
-
-			// send payload
-			if (this.method.hasPayload) {
-				out = this.connection.getOutputStream();
-				if (this.cancelable) {
-					out = new CancelableOutputStream(out);
-				}
-				if (this.debugStream != null) {
-					out = this.debugStream.startSend(out);
-				}
-				this.sendRequest(out);
-			}
+			this.connect();
 
 			// retrieve result
 			this.state = State.READ;
-			if (this.isCancelled()) {
-				throw new InterruptedIOException();
+			if (this.isAborted()) {
+				throw this.aborted();
 			}
 			this.responseCode = this.connection.getResponseCode();
 			this.responseMessage = this.connection.getResponseMessage();
+			if (conditional && this.responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && !this.isUnchanged(cached, true)) {
+				// not modified, but not the cached entity: evict it and request the whole response
+				removeCachedEntity(cacheKey, cached);
+				cached = null;
+				disconnect(this.connection);
+				this.connection = this.open(unconditional);
+				if (this.debugStream != null) {
+					this.debugStream.connection = this.connection;
+				}
+				this.connect();
+				this.responseCode = this.connection.getResponseCode();
+				this.responseMessage = this.connection.getResponseMessage();
+			}
+			if (this.client.cache() != null && this.useCache) {
+				// the requests not using the http cache are not counted as misses
+				countResponseSource(this.connection.getHeaderField(HEADER_RESPONSE_SOURCE));
+			}
 
 			in = this.connection.getInputStream();
+			// return the cached entity if the response was not modified, the body is discarded when closed
+			if (cached != null && this.isUnchanged(cached, conditional)) {
+				entityCacheHits.incrementAndGet();
+				this.cachedEntity = true;
+				@SuppressWarnings("unchecked")
+				Entity entity = (Entity) cached.entity;
+				return entity;
+			}
+
 			// use the cancelable stream
-			if (this.cancelable) {
+			if (this.cancelable || this.deadline > 0) {
 				in = new CancelableInputStream(in);
 			}
 			if (CONTENT_ENCODING_GZIP.equals(this.connection.getContentEncoding())) {
@@ -175,13 +690,26 @@ public abstract class AsyncRequest<Entity> extends AsyncTask<Object, Void, Entit
 			}
 
 			// return entity
-			return this.readResponse(in);
+			if (cacheKey == null) {
+				return this.readResponse(in);
+			}
+			CountingInputStream counter = new CountingInputStream(in);
+			Entity entity = this.readResponse(counter);
+			this.putCachedEntity(cacheKey, entity, counter.count);
+			return entity;
 		}
 		catch (Exception e) {
+			if (this.expired) {
+				// the exception was caused by aborting the connection
+				e = this.aborted();
+			}
 			Log.e(TAG, "Error in request: " + this.url, e);
 			this.error = e;
 		}
 		finally {
+			if (expiration != null) {
+				expiration.cancel(false);
+			}
 			if (in != null) {
 				try {
 					in.close();
@@ -189,17 +717,17 @@ public abstract class AsyncRequest<Entity> extends AsyncTask<Object, Void, Entit
 				catch (IOException ignore) {
 				}
 			}
-			if (out != null) {
+			if (this.error != null || this.isCancelled()) {
+				// the connection might be in an unknown state, do not return it to the pool
 				try {
-					out.close();
+					this.connection.disconnect();
 				}
-				catch (IOException ignore) {
+				catch (Exception ignore) {
 				}
 			}
-			try {
-				this.connection.disconnect();
-			}
-			catch (Exception ignore) {
+			if (this.hostLimit != null) {
+				this.hostLimit.release();
+				this.hostLimit = null;
 			}
 			if (this.error == null) {
 				if (this.debugStream != null) {
@@ -211,6 +739,589 @@ public abstract class AsyncRequest<Entity> extends AsyncTask<Object, Void, Entit
 		return null;
 	}
 
+	/**
+	 * Wait for a permit of the host limit, at most until the deadline, checking if the request was cancelled meanwhile.
+	 */
+	private void acquire(Semaphore limit) throws InterruptedIOException {
+		try {
+			for (;;) {
+				if (this.isAborted()) {
+					throw this.aborted();
+				}
+				long wait = CANCEL_POLL_MILLIS;
+				if (this.deadline > 0) {
+					long remaining = this.remaining();
+					if (remaining <= 0) {
+						this.expired = true;
+						throw this.aborted();
+					}
+					wait = Math.min(wait, remaining);
+				}
+				if (limit.tryAcquire(wait, TimeUnit.MILLISECONDS)) {
+					break;
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		// the deadline might have expired while acquiring the permit
+		if (this.isAborted()) {
+			limit.release();
+			throw this.aborted();
+		}
+	}
+
+	// the deadline is counted from the start of the request, including the time waiting for an other one
+	private void start() {
+		if (this.started == 0) {
+			this.started = System.currentTimeMillis();
+		}
+	}
+
+	private long remaining() {
+		return this.started + this.deadline - System.currentTimeMillis();
+	}
+
+	private void configure(HttpURLConnection connection) throws IOException {
+		connection.setConnectTimeout(this.connectTimeout);
+		connection.setReadTimeout(this.readTimeout);
+		connection.setRequestMethod(this.method.name());
+		if (this.streaming == STREAM_CHUNKED || this.isCompressedStream()) {
+			// the length of the compressed body is not known in advance
+			connection.setChunkedStreamingMode(CHUNK_SIZE);
+		}
+		else if (this.streaming >= 0) {
+			connection.setFixedLengthStreamingMode(this.streaming);
+		}
+	}
+
+	/**
+	 * Send the request and receive the status of the response, retrying and hedging it using the retry policy.
+	 * The connection of the request is replaced with the one receiving the response.
+	 */
+	private void connect() throws Exception {
+		RetryPolicy policy = this.retryPolicy;
+		if (policy == null || !this.method.idempotent) {
+			this.attempts = 1;
+			this.send(this.connection);
+			return;
+		}
+
+		// the request properties can not be read after connecting
+		Map<String, List<String>> headers = new LinkedHashMap<>(this.connection.getRequestProperties());
+		boolean hedge = policy.hedgeAfterMillis > 0 && !this.method.hasPayload;
+		HttpURLConnection connection = this.connection;
+		for (int attempt = 1; ; attempt += 1) {
+			this.attempts = attempt;
+			Exception failure = null;
+			try {
+				connection = hedge ? this.hedge(connection, headers, policy.hedgeAfterMillis) : this.send(connection);
+				this.connection = connection;
+				if (this.debugStream != null) {
+					this.debugStream.connection = connection;
+				}
+			}
+			catch (Exception e) {
+				if (this.isAborted() || !policy.shouldRetry(e)) {
+					throw e;
+				}
+				failure = e;
+			}
+
+			int responseCode = failure != null ? -1 : connection.getResponseCode();
+			if (failure == null && !policy.shouldRetry(responseCode)) {
+				return;
+			}
+			if (attempt >= policy.maxAttempts || this.isAborted()) {
+				if (failure != null) {
+					throw failure;
+				}
+				return;
+			}
+
+			long delay = policy.backoff(attempt);
+			if (failure == null) {
+				delay = Math.max(delay, policy.retryAfter(connection.getHeaderField(HEADER_RETRY_AFTER)));
+				Log.w(TAG, "Retrying request: " + this.url + ", status: " + responseCode);
+			}
+			else {
+				Log.w(TAG, "Retrying request: " + this.url, failure);
+			}
+			retriedRequests.incrementAndGet();
+			disconnect(connection);
+			// the retry waits for its turn, the permit of the host is not held during the backoff
+			Semaphore limit = this.hostLimit;
+			this.hostLimit = null;
+			limit.release();
+			this.sleep(delay);
+			this.acquire(limit);
+			this.hostLimit = limit;
+			connection = this.open(headers);
+			// abort the new connection if the deadline expired while replacing it
+			this.connection = connection;
+			if (this.isAborted()) {
+				throw this.aborted();
+			}
+		}
+	}
+
+	private boolean isAborted() {
+		return this.expired || this.isCancelled();
+	}
+
+	private InterruptedIOException aborted() {
+		if (this.expired) {
+			return new SocketTimeoutException("deadline of " + this.deadline + " ms exceeded");
+		}
+		return new InterruptedIOException();
+	}
+
+	// called by the watchdog when the deadline expires
+	private void expire() {
+		this.expired = true;
+		disconnect(this.connection);
+		this.wakeUp();
+	}
+
+	// continue a coalesced request waiting for the identical request in flight
+	private void wakeUp() {
+		CompletableFuture<Void> waiting = this.waiting;
+		if (waiting != null) {
+			waiting.complete(null);
+		}
+	}
+
+	/**
+	 * Connect, send the payload and wait for the status of the response.
+	 */
+	private HttpURLConnection send(HttpURLConnection connection) throws Exception {
+		// the encoding of the body must be decided before connecting
+		byte[] content = null;
+		boolean compress = false;
+		if (this.method.hasPayload && this.compression != null) {
+			if (this.streaming == STREAM_BUFFERED) {
+				// buffer the body to know its length, compressed before connecting,
+				// it is sent with its length so the connection does not buffer an other copy
+				ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+				this.sendRequest(buffer);
+				content = buffer.toByteArray();
+				if (content.length >= this.compressionMinSize) {
+					connection.setRequestProperty(HEADER_CONTENT_ENCODING, this.compression.encoding);
+					content = this.compress(content);
+				}
+				connection.setFixedLengthStreamingMode(content.length);
+			}
+			else if (this.isCompressedStream()) {
+				connection.setRequestProperty(HEADER_CONTENT_ENCODING, this.compression.encoding);
+				compress = true;
+			}
+		}
+
+		connection.connect();
+		if (this.method.hasPayload) {
+			OutputStream stream = connection.getOutputStream();
+			Deflater deflater = null;
+			boolean sent = false;
+			try {
+				OutputStream out = stream;
+				if (this.cancelable) {
+					out = new CancelableOutputStream(out);
+				}
+				DeflaterOutputStream compressor = null;
+				if (compress) {
+					deflater = new Deflater(this.compressionLevel, this.compression == Compression.GZIP);
+					out = compressor = this.newCompressor(out, deflater);
+				}
+				if (this.debugStream != null) {
+					out = this.debugStream.startSend(out);
+				}
+				if (content != null) {
+					out.write(content);
+				}
+				else {
+					this.sendRequest(out);
+				}
+				if (compressor != null) {
+					compressor.finish();
+				}
+				// the wrappers are not closing the stream, closing it completes the body
+				stream.close();
+				sent = true;
+			}
+			finally {
+				if (deflater != null) {
+					// releases the native memory, without writing the end of a truncated body
+					deflater.end();
+				}
+				if (!sent) {
+					// closing the stream would complete a truncated chunked body, abort the request instead
+					disconnect(connection);
+				}
+			}
+		}
+		connection.getResponseCode();
+		return connection;
+	}
+
+	private boolean isCompressedStream() {
+		if (this.compression == null) {
+			return false;
+		}
+		return this.streaming == STREAM_CHUNKED || this.streaming >= 0 && this.streaming >= this.compressionMinSize;
+	}
+
+	private byte[] compress(byte[] content) throws IOException {
+		Deflater deflater = new Deflater(this.compressionLevel, this.compression == Compression.GZIP);
+		try {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream(Math.max(32, content.length / 4));
+			DeflaterOutputStream out = this.newCompressor(buffer, deflater);
+			out.write(content);
+			out.finish();
+			return buffer.toByteArray();
+		}
+		finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Returns the stream compressing with the deflater, which is not released when the stream is closed.
+	 * The gzip stream needs a deflater without the zlib header and trailer.
+	 */
+	private DeflaterOutputStream newCompressor(OutputStream out, final Deflater deflater) throws IOException {
+		switch (this.compression) {
+			case GZIP:
+				return new GZIPOutputStream(out, CHUNK_SIZE) {
+					{
+						// replace the default deflater, to use the level and to release it on failures
+						this.def.end();
+						this.def = deflater;
+					}
+				};
+
+			case DEFLATE:
+				return new DeflaterOutputStream(out, deflater, CHUNK_SIZE);
+		}
+		throw new IllegalStateException("unsupported compression: " + this.compression);
+	}
+
+	/**
+	 * Send the request, and if there is no response in time, send it again, the first response wins.
+	 * The hedged request takes an other permit of the host, it is not sent if the host limit is reached.
+	 */
+	private HttpURLConnection hedge(final HttpURLConnection first, Map<String, List<String>> headers, long delay) throws Exception {
+		final CompletableFuture<HttpURLConnection> result = new CompletableFuture<>();
+		final AtomicInteger pending = new AtomicInteger(1);
+		Executor executor = getHedgeExecutor();
+		try {
+			executor.execute(() -> this.race(first, result, pending));
+		}
+		catch (RejectedExecutionException e) {
+			return this.send(first);
+		}
+
+		long deadline = System.currentTimeMillis() + delay;
+		boolean hedging = false;
+		HttpURLConnection second = null;
+		Semaphore permit = null;
+		try {
+			while (!result.isDone()) {
+				if (this.isAborted()) {
+					throw this.aborted();
+				}
+				long wait = CANCEL_POLL_MILLIS;
+				if (!hedging) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						hedging = true;
+						if (this.hostLimit.tryAcquire()) {
+							// the hedged request is optional, keep waiting for the first one if it can not be sent
+							permit = this.hostLimit;
+							try {
+								final HttpURLConnection hedged = this.open(headers);
+								pending.incrementAndGet();
+								try {
+									executor.execute(() -> this.race(hedged, result, pending));
+								}
+								catch (RejectedExecutionException e) {
+									// the first request might have failed meanwhile
+									if (pending.decrementAndGet() == 0) {
+										result.completeExceptionally(e);
+									}
+									throw e;
+								}
+								second = hedged;
+								hedgedRequests.incrementAndGet();
+							}
+							catch (IOException | RuntimeException e) {
+								Log.w(TAG, "Not hedging request: " + this.url, e);
+								permit.release();
+								permit = null;
+							}
+						}
+						continue;
+					}
+					wait = Math.min(wait, remaining);
+				}
+				try {
+					result.get(wait, TimeUnit.MILLISECONDS);
+				}
+				catch (TimeoutException ignore) {
+				}
+			}
+			return result.get();
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			throw cause instanceof Exception ? (Exception) cause : e;
+		}
+		finally {
+			// the response of the losing request is not needed
+			HttpURLConnection winner = result.getNow(null);
+			if (winner != first) {
+				disconnect(first);
+			}
+			if (second != null && winner != second) {
+				disconnect(second);
+			}
+			// only the winning connection is used to read the response, with the permit of the request
+			if (permit != null) {
+				permit.release();
+			}
+		}
+	}
+
+	private void race(HttpURLConnection connection, CompletableFuture<HttpURLConnection> result, AtomicInteger pending) {
+		try {
+			if (!result.complete(this.send(connection))) {
+				disconnect(connection);
+			}
+		}
+		catch (Exception e) {
+			// fail only if all the requests failed
+			if (pending.decrementAndGet() == 0) {
+				result.completeExceptionally(e);
+			}
+		}
+	}
+
+	/**
+	 * Open an other connection to retry or hedge the request, with the settings of the current one.
+	 */
+	private HttpURLConnection open(Map<String, List<String>> headers) throws IOException {
+		HttpURLConnection previous = this.connection;
+		HttpURLConnection connection = this.factory.open(this.url);
+		connection.setUseCaches(previous.getUseCaches());
+		connection.setInstanceFollowRedirects(previous.getInstanceFollowRedirects());
+		connection.setIfModifiedSince(previous.getIfModifiedSince());
+		connection.setAllowUserInteraction(previous.getAllowUserInteraction());
+		connection.setDoOutput(previous.getDoOutput());
+		this.configure(connection);
+		for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+			for (String value : header.getValue()) {
+				connection.addRequestProperty(header.getKey(), value);
+			}
+		}
+		return connection;
+	}
+
+	private void sleep(long millis) throws InterruptedIOException {
+		long deadline = System.currentTimeMillis() + millis;
+		try {
+			for (long remaining = millis; remaining > 0; remaining = deadline - System.currentTimeMillis()) {
+				if (this.isAborted()) {
+					throw this.aborted();
+				}
+				Thread.sleep(Math.min(remaining, CANCEL_POLL_MILLIS));
+			}
+		}
+		catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+	}
+
+	private static void disconnect(HttpURLConnection connection) {
+		try {
+			connection.disconnect();
+		}
+		catch (Exception ignore) {
+		}
+	}
+
+	/**
+	 * Execute the request, or wait for the result of the identical request in flight.
+	 */
+	private Entity coalesced() {
+		if (this.flight == null) {
+			this.join();
+		}
+		if (this.waiting == null) {
+			return this.lead();
+		}
+		try {
+			// completed by the leader, the watchdog, or cancelling the future of the request
+			this.waiting.get();
+		}
+		catch (InterruptedException | ExecutionException e) {
+			this.error = new InterruptedIOException();
+			this.state = State.DONE;
+			return null;
+		}
+		return this.follow();
+	}
+
+	/**
+	 * Start a new flight, or join the identical request in flight, returns true if this request leads the flight.
+	 * The requests joining a flight do not wait on a thread, {@link #waiting} is completed when they can continue.
+	 */
+	private boolean join() {
+		this.start();
+		this.flightKey = this.getClass().getName() + ' ' + this.method + ' ' + this.url + ' ' + this.acceptGzip
+				+ ' ' + new TreeMap<>(this.connection.getRequestProperties());
+		InFlight flight = new InFlight();
+		InFlight leader = inFlight.putIfAbsent(this.flightKey, flight);
+		if (leader == null) {
+			this.flight = flight;
+			return true;
+		}
+
+		this.flight = leader;
+		this.state = State.READ;
+		final CompletableFuture<Void> waiting = new CompletableFuture<>();
+		this.waiting = waiting;
+		leader.done.whenComplete((ignore, e) -> waiting.complete(null));
+		if (this.deadline > 0) {
+			final ScheduledFuture<?> expiration = getWatchdog().schedule(this::expire, Math.max(0, this.remaining()), TimeUnit.MILLISECONDS);
+			waiting.whenComplete((ignore, e) -> expiration.cancel(false));
+		}
+		return false;
+	}
+
+	private Entity lead() {
+		InFlight flight = this.flight;
+		try {
+			Entity result = this.execute();
+			flight.entity = result;
+			flight.cancelled = this.isCancelled();
+			flight.responseCode = this.responseCode;
+			flight.responseMessage = this.responseMessage;
+			flight.cachedEntity = this.cachedEntity;
+			flight.error = this.error;
+			if (this.error == null && !flight.cancelled) {
+				flight.headers = this.connection.getHeaderFields();
+			}
+			return result;
+		}
+		finally {
+			// later requests start a new flight, the waiting ones receive the result
+			inFlight.remove(this.flightKey, flight);
+			flight.done.complete(null);
+		}
+	}
+
+	private Entity follow() {
+		InFlight leader = this.flight;
+		if (this.isAborted()) {
+			this.error = this.aborted();
+			this.state = State.DONE;
+			return null;
+		}
+		if (leader.cancelled) {
+			// the result of a cancelled request is not usable
+			return this.execute();
+		}
+		coalescedRequests.incrementAndGet();
+		this.coalesced = leader;
+		this.responseCode = leader.responseCode;
+		this.responseMessage = leader.responseMessage;
+		this.cachedEntity = leader.cachedEntity;
+		this.error = leader.error;
+		this.state = State.DONE;
+		@SuppressWarnings("unchecked")
+		Entity entity = (Entity) leader.entity;
+		return entity;
+	}
+
+	/**
+	 * Run the request concurrently on the default executor,
+	 * the callbacks are delivered on the main thread.
+	 * @see #submit(Executor, Executor)
+	 */
+	public CompletableFuture<Entity> submit() {
+		Looper looper = Looper.getMainLooper();
+		if (looper == null) {
+			// not running on a device, deliver the callbacks on the worker thread
+			return submit(getDefaultExecutor(), Runnable::run);
+		}
+		return submit(getDefaultExecutor(), new Handler(looper)::post);
+	}
+
+	/**
+	 * Run the request on the executor, instead of the serial executor of {@link AsyncTask}.
+	 * <p>
+	 * The callbacks ({@link #onResult(Object)}, {@link #onError(Exception)}, or {@link #onCancelled(Object)})
+	 * are delivered with the callback executor, the returned future is completed on the worker thread.
+	 * Errors thrown by the request complete the future, {@link #onError(Exception)} receives them
+	 * wrapped into an {@link ExecutionException}.
+	 * Cancelling the future cancels the request.
+	 * A coalesced request is run on the executor only after the identical request in flight completed.
+	 */
+	public CompletableFuture<Entity> submit(Executor executor, final Executor callbackExecutor) {
+		// the request can be submitted only once, even by concurrent calls
+		if (!STATE.compareAndSet(this, State.INIT, State.SEND)) {
+			throw new IllegalStateException();
+		}
+		final CompletableFuture<Entity> result = new CompletableFuture<Entity>() {
+			@Override
+			public boolean cancel(boolean mayInterruptIfRunning) {
+				AsyncRequest.this.cancel(mayInterruptIfRunning);
+				AsyncRequest.this.wakeUp();
+				return super.cancel(mayInterruptIfRunning);
+			}
+		};
+		Runnable task = () -> {
+			Entity value = null;
+			Throwable failure = null;
+			try {
+				value = this.doInBackground();
+			}
+			catch (Throwable e) {
+				// the future and the callbacks receive the failure, the worker thread is kept
+				Log.e(TAG, "Error in request: " + this.url, e);
+				failure = e;
+				this.error = e instanceof Exception ? (Exception) e : new ExecutionException(e);
+				this.state = State.DONE;
+			}
+			final Entity entity = value;
+			if (failure != null) {
+				result.completeExceptionally(failure);
+			}
+			else if (this.error != null) {
+				result.completeExceptionally(this.error);
+			}
+			else {
+				result.complete(entity);
+			}
+			callbackExecutor.execute(() -> {
+				if (this.isCancelled()) {
+					this.onCancelled(entity);
+				}
+				else {
+					this.onPostExecute(entity);
+				}
+			});
+		};
+		if (this.coalesce && !this.method.hasPayload && !this.join()) {
+			// do not hold a thread of the executor while the identical request is in flight
+			this.waiting.whenComplete((ignore, e) -> executor.execute(task));
+		}
+		else {
+			executor.execute(task);
+		}
+		return result;
+	}
+
 	@Override
 	protected void onPostExecute(Entity result) {
 		if (this.error != null) {
@@ -221,6 +1332,124 @@ public abstract class AsyncRequest<Entity> extends AsyncTask<Object, Void, Entit
 		}
 	}
 
+	/**
+	 * Returns the key of the request in the cache of the entities, or null if it is not cacheable.
+	 * The requests with credentials are not cached, the entities are shared by all the requests,
+	 * the headers selecting the representation of the response are part of the key.
+	 */
+	private String getEntityCacheKey() {
+		if (!this.useCache || this.method != Method.GET) {
+			return null;
+		}
+		synchronized (entityCache) {
+			if (entityCacheMaxWeight <= 0) {
+				return null;
+			}
+		}
+		if (this.connection.getRequestProperty(HEADER_AUTHORIZATION) != null || this.connection.getRequestProperty(HEADER_COOKIE) != null) {
+			return null;
+		}
+		StringBuilder result = new StringBuilder(this.getClass().getName()).append(' ').append(this.url);
+		for (String header : VARY_HEADERS) {
+			String value = this.connection.getRequestProperty(header);
+			if (value != null) {
+				result.append('\n').append(header).append(": ").append(value);
+			}
+		}
+		return result.toString();
+	}
+
+	private static CachedEntity getCachedEntity(String key) {
+		if (key == null) {
+			return null;
+		}
+		synchronized (entityCache) {
+			return entityCache.get(key);
+		}
+	}
+
+	private void putCachedEntity(String key, Entity entity, long weight) {
+		if (key == null || entity == null || this.responseCode != HttpURLConnection.HTTP_OK) {
+			return;
+		}
+		boolean etag = true;
+		String validator = this.connection.getHeaderField(HEADER_ETAG);
+		if (validator == null) {
+			etag = false;
+			validator = this.connection.getHeaderField(HEADER_LAST_MODIFIED);
+		}
+		synchronized (entityCache) {
+			CachedEntity old = entityCache.remove(key);
+			if (old != null) {
+				entityCacheWeight -= old.weight;
+			}
+			if (validator == null || weight > entityCacheMaxWeight) {
+				return;
+			}
+			entityCache.put(key, new CachedEntity(entity, validator, etag, weight));
+			entityCacheWeight += weight;
+			trimEntityCache();
+		}
+	}
+
+	private static void removeCachedEntity(String key, CachedEntity cached) {
+		synchronized (entityCache) {
+			if (entityCache.remove(key, cached)) {
+				entityCacheWeight -= cached.weight;
+			}
+		}
+	}
+
+	/**
+	 * Check if the response is the one of the cached entity, not modified since it was cached.
+	 */
+	private boolean isUnchanged(CachedEntity cached, boolean conditional) {
+		if (conditional) {
+			if (this.responseCode != HttpURLConnection.HTTP_NOT_MODIFIED) {
+				return false;
+			}
+			// the validator of the not modified response, if sent, must be the one of the cached entity
+			String validator = this.connection.getHeaderField(cached.etag ? HEADER_ETAG : HEADER_LAST_MODIFIED);
+			return validator == null || cached.validator.equals(validator);
+		}
+		String source = this.connection.getHeaderField(HEADER_RESPONSE_SOURCE);
+		if (source == null || !source.startsWith(SOURCE_CACHE) && !source.equals(SOURCE_CONDITIONAL_CACHE + " 304")) {
+			return false;
+		}
+		String validator = this.connection.getHeaderField(cached.etag ? HEADER_ETAG : HEADER_LAST_MODIFIED);
+		return cached.validator.equals(validator);
+	}
+
+	// evict the least recently used entities, must be called holding the lock of the cache
+	private static void trimEntityCache() {
+		Iterator<CachedEntity> eldest = entityCache.values().iterator();
+		while (entityCacheWeight > entityCacheMaxWeight && eldest.hasNext()) {
+			entityCacheWeight -= eldest.next().weight;
+			eldest.remove();
+		}
+	}
+
+	private static void countResponseSource(String source) {
+		if (source == null) {
+			return;
+		}
+		if (source.startsWith(SOURCE_CONDITIONAL_CACHE)) {
+			cacheRevalidations.incrementAndGet();
+			if (source.endsWith(" 304")) {
+				cacheHits.incrementAndGet();
+			}
+			else {
+				cacheMisses.incrementAndGet();
+			}
+		}
+		else if (source.startsWith(SOURCE_CACHE)) {
+			cacheHits.incrementAndGet();
+		}
+		else {
+			cacheMisses.incrementAndGet();
+		}
+	}
+
 	private void assertState(State state) {
 		if (this.state != state) {
 			throw new IllegalStateException();
@@ -230,20 +1459,296 @@ public abstract class AsyncRequest<Entity> extends AsyncTask<Object, Void, Entit
 	// request
 	private final URL url;
 	private final Method method;
+	private OkUrlFactory factory;
+	private final OkHttpClient client;
 	private boolean acceptGzip = false;
+	private boolean useCache = true;
+	private boolean coalesce = false;
+	private RetryPolicy retryPolicy = null;
+	private Body body = null;
+	private long streaming = STREAM_BUFFERED;
+	private Compression compression = null;
+	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+	private int compressionMinSize = 0;
+	private int connectTimeout = CONNECT_TIMEOUT;
+	private int readTimeout = READ_TIMEOUT;
+	private long deadline = 0;
+	private long started = 0;
 
 	// response
 	private int responseCode = 0;
 	private String responseMessage = null;
+	private boolean cachedEntity = false;
+	private InFlight coalesced = null;
+	private InFlight flight = null;
+	private String flightKey = null;
+	private int attempts = 0;
 	private Exception error = null;
 
 	private volatile State state = State.INIT;
 	private volatile boolean cancelable = false;
+	private volatile boolean expired = false;
+	private volatile CompletableFuture<Void> waiting = null;
+	// the permit of the host held by the request
+	private Semaphore hostLimit = null;
 
-	private final HttpURLConnection connection;
+	// replaced when the request is retried or hedged, disconnected by the watchdog
+	private volatile HttpURLConnection connection;
 	private final DebugStream debugStream = new DebugStream();
 
-	/// cancel reading response when {@cancel} is true;
+	/**
+	 * Body of the request, written directly to the connection.
+	 * The body can be written more times if the request is retried.
+	 */
+	public interface Body {
+		/**
+		 * Returns the media type of the content, or null to not set the `Content-Type` header.
+		 */
+		String contentType();
+
+		/**
+		 * Returns the length of the content in bytes, or -1 if unknown to send it in chunks.
+		 */
+		long contentLength();
+
+		void writeTo(OutputStream out) throws IOException;
+
+		static Body of(final String contentType, final byte[] content) {
+			return new Body() {
+				@Override
+				public String contentType() {
+					return contentType;
+				}
+
+				@Override
+				public long contentLength() {
+					return content.length;
+				}
+
+				@Override
+				public void writeTo(OutputStream out) throws IOException {
+					out.write(content);
+				}
+			};
+		}
+
+		static Body of(final String contentType, final File content) {
+			return new Body() {
+				@Override
+				public String contentType() {
+					return contentType;
+				}
+
+				@Override
+				public long contentLength() {
+					return content.length();
+				}
+
+				@Override
+				public void writeTo(OutputStream out) throws IOException {
+					byte[] buffer = new byte[CHUNK_SIZE];
+					try (InputStream in = new FileInputStream(content)) {
+						for (int n; (n = in.read(buffer)) > 0; ) {
+							out.write(buffer, 0, n);
+						}
+					}
+				}
+			};
+		}
+	}
+
+	/**
+	 * Retry policy of the requests: the number of attempts, the backoff between them,
+	 * the status codes and the exceptions to be retried, and the delay of the hedged request.
+	 * <p>
+	 * The delay before the next attempt is chosen randomly up to the exponential backoff (full jitter),
+	 * and it is at least the delay requested by the `Retry-After` header, limited by the maximum backoff.
+	 */
+	public static class RetryPolicy {
+		private int maxAttempts = 3;
+		private long initialBackoffMillis = 100;
+		private long maxBackoffMillis = 10000;
+		private double multiplier = 2;
+		private long hedgeAfterMillis = 0;
+		private final Set<Integer> retryStatus = new HashSet<>(Arrays.asList(
+				408, // Request Timeout
+				429, // Too Many Requests
+				500, // Internal Server Error
+				502, // Bad Gateway
+				503, // Service Unavailable
+				504  // Gateway Timeout
+		));
+		private final Set<Class<? extends Exception>> retryExceptions = new HashSet<>(
+				Collections.<Class<? extends Exception>>singletonList(IOException.class)
+		);
+
+		/**
+		 * Maximum number of attempts, including the first one.
+		 */
+		public RetryPolicy setMaxAttempts(int maxAttempts) {
+			if (maxAttempts < 1) {
+				throw new IllegalArgumentException("maxAttempts: " + maxAttempts);
+			}
+			this.maxAttempts = maxAttempts;
+			return this;
+		}
+
+		/**
+		 * Exponential backoff: the n-th retry waits at most `min(maxMillis, initialMillis * multiplier^(n-1))`.
+		 */
+		public RetryPolicy setBackoff(long initialMillis, long maxMillis, double multiplier) {
+			if (initialMillis < 0 || maxMillis < initialMillis || multiplier < 1) {
+				throw new IllegalArgumentException("backoff: " + initialMillis + ", " + maxMillis + ", " + multiplier);
+			}
+			this.initialBackoffMillis = initialMillis;
+			this.maxBackoffMillis = maxMillis;
+			this.multiplier = multiplier;
+			return this;
+		}
+
+		/**
+		 * Replace the status codes to be retried, by default: 408, 429, 500, 502, 503 and 504.
+		 */
+		public RetryPolicy retryOnStatus(int... statusCodes) {
+			this.retryStatus.clear();
+			for (int statusCode : statusCodes) {
+				this.retryStatus.add(statusCode);
+			}
+			return this;
+		}
+
+		/**
+		 * Replace the exceptions to be retried, by default all the {@link IOException}s.
+		 * Cancelled requests are never retried.
+		 */
+		@SafeVarargs
+		public final RetryPolicy retryOnException(Class<? extends Exception>... exceptions) {
+			this.retryExceptions.clear();
+			this.retryExceptions.addAll(Arrays.asList(exceptions));
+			return this;
+		}
+
+		/**
+		 * Send the request again if the response is not received in time, the first response wins.
+		 * Only requests without payload are hedged.
+		 * @param millis the delay of the hedged request, 0 to disable hedging
+		 */
+		public RetryPolicy hedgeAfter(long millis) {
+			this.hedgeAfterMillis = millis;
+			return this;
+		}
+
+		protected boolean shouldRetry(int responseCode) {
+			return this.retryStatus.contains(responseCode);
+		}
+
+		protected boolean shouldRetry(Exception error) {
+			for (Class<? extends Exception> type : this.retryExceptions) {
+				if (type.isInstance(error)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Returns the delay before the next attempt, after the given number of attempts.
+		 */
+		protected long backoff(int attempts) {
+			double backoff = this.initialBackoffMillis * Math.pow(this.multiplier, attempts - 1);
+			long limit = (long) Math.min(backoff, this.maxBackoffMillis);
+			return ThreadLocalRandom.current().nextLong(limit + 1);
+		}
+
+		// the `Retry-After` header in seconds, dates are not supported
+		private long retryAfter(String value) {
+			if (value == null) {
+				return 0;
+			}
+			try {
+				return Math.min(Long.parseLong(value.trim()) * 1000, this.maxBackoffMillis);
+			}
+			catch (NumberFormatException e) {
+				return 0;
+			}
+		}
+	}
+
+	private static final class CachedEntity {
+		private final Object entity;
+		private final String validator;
+		private final boolean etag;
+		private final long weight;
+
+		private CachedEntity(Object entity, String validator, boolean etag, long weight) {
+			this.entity = entity;
+			this.validator = validator;
+			this.etag = etag;
+			this.weight = weight;
+		}
+	}
+
+	/// concurrent requests to a host, resized in place when the limit is configured
+	private static final class HostLimit extends Semaphore {
+		private volatile int limit;
+
+		private HostLimit(int limit) {
+			super(limit, true);
+			this.limit = limit;
+		}
+
+		private synchronized void resize() {
+			int limit = maxRequestsPerHost;
+			if (limit > this.limit) {
+				this.release(limit - this.limit);
+			}
+			else if (limit < this.limit) {
+				// the permits can go negative, the running requests must release them first
+				this.reducePermits(this.limit - limit);
+			}
+			this.limit = limit;
+		}
+	}
+
+	/// result of a request shared with the identical requests started while it was in flight
+	private static final class InFlight {
+		private final CompletableFuture<Void> done = new CompletableFuture<>();
+		private Object entity;
+		private boolean cancelled;
+		private int responseCode;
+		private String responseMessage;
+		private boolean cachedEntity;
+		private Exception error;
+		private Map<String, List<String>> headers = Collections.emptyMap();
+	}
+
+	/// count the bytes of the response, used as the weight of the cached entity
+	private static final class CountingInputStream extends FilterInputStream {
+		private long count = 0;
+
+		private CountingInputStream(InputStream stream) {
+			super(stream);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int result = super.read();
+			if (result != -1) {
+				count += 1;
+			}
+			return result;
+		}
+		@Override
+		public int read(byte[] buffer, int byteOffset, int byteCount) throws IOException {
+			int result = super.read(buffer, byteOffset, byteCount);
+			if (result > 0) {
+				count += result;
+			}
+			return result;
+		}
+	}
+
+	/// cancel reading response when {@cancel} is true, or the deadline expired;
 	private class CancelableInputStream extends InputStream {
 		private final InputStream stream;
 
@@ -253,15 +1758,15 @@ public abstract class AsyncRequest<Entity> extends AsyncTask<Object, Void, Entit
 
 		@Override
 		public int read() throws IOException {
-			if (AsyncRequest.this.isCancelled()) {
-				throw new InterruptedIOException();
+			if (AsyncRequest.this.isAborted()) {
+				throw AsyncRequest.this.aborted();
 			}
 			return stream.read();
 		}
 		@Override
 		public int read(byte[] buffer, int byteOffset, int byteCount) throws IOException {
-			if (AsyncRequest.this.isCancelled()) {
-				throw new InterruptedIOException();
+			if (AsyncRequest.this.isAborted()) {
+				throw AsyncRequest.this.aborted();
 			}
 			return stream.read(buffer, byteOffset, byteCount);
 		}
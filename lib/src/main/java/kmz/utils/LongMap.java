@@ -0,0 +1,175 @@
+package kmz.utils;
+
+import java.util.Arrays;
+
+/**
+ * Compact hash map with primitive long keys, using open addressing with linear probing.
+ * <p>
+ * Keys are not boxed and there are no entry objects, which makes it suitable for large maps indexed by numeric ids.
+ * @param <V> the type of the values
+ */
+public class LongMap<V> {
+	private static final Object NULL = new Object();
+	private static final int MIN_CAPACITY = 8;
+
+	private long[] keys;
+	private Object[] values;
+	private int size = 0;
+	private int shift;
+
+	public LongMap() {
+		this(0);
+	}
+
+	/**
+	 * @param expectedSize number of entries to be stored without resizing
+	 */
+	public LongMap(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < expectedSize + (expectedSize >> 1)) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean containsKey(long key) {
+		return values[indexOf(key)] != null;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		Object value = values[indexOf(key)];
+		if (value == NULL) {
+			return null;
+		}
+		return (V) value;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		int index = indexOf(key);
+		Object old = values[index];
+		values[index] = value == null ? NULL : value;
+		if (old != null) {
+			return old == NULL ? null : (V) old;
+		}
+
+		keys[index] = key;
+		size += 1;
+		// keep the load factor below 2/3
+		if (3 * size > 2 * keys.length) {
+			resize(keys.length << 1);
+		}
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int index = indexOf(key);
+		Object old = values[index];
+		if (old == null) {
+			return null;
+		}
+
+		// backward shift deletion: move the following entries of the probe sequence into the gap
+		int mask = keys.length - 1;
+		int gap = index;
+		for (int i = (index + 1) & mask; values[i] != null; i = (i + 1) & mask) {
+			int home = hash(keys[i]);
+			if (((i - home) & mask) >= ((i - gap) & mask)) {
+				keys[gap] = keys[i];
+				values[gap] = values[i];
+				gap = i;
+			}
+		}
+		values[gap] = null;
+		size -= 1;
+		return old == NULL ? null : (V) old;
+	}
+
+	@SuppressWarnings("unchecked")
+	public void putAll(LongMap<? extends V> other) {
+		for (int i = 0; i < other.keys.length; i += 1) {
+			Object value = other.values[i];
+			if (value != null) {
+				put(other.keys[i], value == NULL ? null : (V) value);
+			}
+		}
+	}
+
+	public void clear() {
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	/**
+	 * Returns the keys of the map, in no particular order.
+	 */
+	public long[] keys() {
+		long[] result = new long[size];
+		int n = 0;
+		for (int i = 0; i < keys.length; i += 1) {
+			if (values[i] != null) {
+				result[n++] = keys[i];
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder result = new StringBuilder("{");
+		for (int i = 0; i < keys.length; i += 1) {
+			Object value = values[i];
+			if (value == null) {
+				continue;
+			}
+			if (result.length() > 1) {
+				result.append(", ");
+			}
+			result.append(keys[i]).append('=').append(value == NULL ? null : value);
+		}
+		return result.append('}').toString();
+	}
+
+	private int hash(long key) {
+		// fibonacci hashing, spreads sequential ids over the table
+		return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+	}
+
+	private int indexOf(long key) {
+		int mask = keys.length - 1;
+		int index = hash(key);
+		while (values[index] != null && keys[index] != key) {
+			index = (index + 1) & mask;
+		}
+		return index;
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new Object[capacity];
+		shift = Long.numberOfLeadingZeros(capacity - 1);
+	}
+
+	private void resize(int capacity) {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		allocate(capacity);
+		for (int i = 0; i < oldKeys.length; i += 1) {
+			if (oldValues[i] != null) {
+				int index = indexOf(oldKeys[i]);
+				keys[index] = oldKeys[i];
+				values[index] = oldValues[i];
+			}
+		}
+	}
+}
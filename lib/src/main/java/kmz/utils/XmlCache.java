@@ -0,0 +1,450 @@
+package kmz.utils;
+
+import android.util.Log;
+
+import java.io.CharArrayReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Reader;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of the deserialized documents, identical inputs are parsed only once.
+ * <p>
+ * The entries are keyed by the SHA-256 digest and the length of the content, and by the type of the result,
+ * the least recently used entries are evicted when the total length of the cached documents exceeds the limit.
+ * Documents longer than the limit are parsed while they are read, without being cached.
+ * Evicted values implementing {@link Serializable} are written to the spill directory if one is specified,
+ * and loaded back on the next request of the same document.
+ * <p>
+ * The same instance is returned for identical inputs, and it is shared by the threads,
+ * so the cached values must not be modified, use entities bound with constructors or do not mutate the results.
+ */
+public class XmlCache {
+	protected static final String TAG = "XmlCache";
+
+	private static final String SPILL_SUFFIX = ".spill";
+
+	// the read buffer is kept for the next document only up to this size
+	private static final int MAX_BUFFER = 64 * 1024;
+
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, .75f, true);
+	private final HashSet<Key> spilled = new HashSet<>();
+	private final long maxWeight;
+	private final File spill;
+	private long weight = 0;
+
+	// incremented by clear, to drop the values spilled concurrently
+	private int generation = 0;
+
+	// statistics
+	private long hits = 0;
+	private long misses = 0;
+	private long spillHits = 0;
+	private long evictions = 0;
+
+	// reusable buffer for reading the content
+	private char[] buffer = new char[4096];
+
+	/**
+	 * @param maxWeight maximum number of cached characters
+	 */
+	public XmlCache(long maxWeight) {
+		this(maxWeight, null);
+	}
+
+	/**
+	 * @param maxWeight maximum number of cached characters
+	 * @param spill directory of the evicted values, or null to discard them.
+	 * The directory must not be shared with other caches, the values spilled by earlier processes are deleted.
+	 */
+	public XmlCache(long maxWeight, File spill) {
+		this.maxWeight = maxWeight;
+		this.spill = spill;
+		deleteSpill();
+	}
+
+	/**
+	 * Returns the cached value of the document, or deserializes it with {@link XmlParser#readValue(Reader, Class)}.
+	 * The returned instance is shared with the other readers of the same document, it must not be modified.
+	 */
+	public <T> T readValue(Reader input, Class<T> type) throws Exception {
+		return read(input, type, false);
+	}
+
+	/**
+	 * Returns the cached value of the document, or deserializes it with {@link XmlParser#readJson(Reader, Class)}.
+	 * The returned instance is shared with the other readers of the same document, it must not be modified.
+	 */
+	public <T> T readJson(Reader input, Class<T> type) throws Exception {
+		return read(input, type, true);
+	}
+
+	/**
+	 * Create the parser for the documents not found in the cache, override to set the limits.
+	 */
+	protected XmlParser newParser() throws Exception {
+		return new XmlParser();
+	}
+
+	public synchronized long hitCount() {
+		return hits;
+	}
+
+	public synchronized long missCount() {
+		return misses;
+	}
+
+	/**
+	 * Number of values loaded from the spill directory, these are also counted as hits.
+	 */
+	public synchronized long spillHitCount() {
+		return spillHits;
+	}
+
+	public synchronized long evictionCount() {
+		return evictions;
+	}
+
+	/**
+	 * Total length of the cached documents.
+	 */
+	public synchronized long weight() {
+		return weight;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Remove all the values, including the spilled ones.
+	 */
+	public synchronized void clear() {
+		for (Key key : spilled) {
+			if (!key.file(spill).delete()) {
+				Log.w(TAG, "failed to delete spilled value: " + key);
+			}
+		}
+		spilled.clear();
+		entries.clear();
+		weight = 0;
+		generation += 1;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "XmlCache{" +
+				"size=" + entries.size() +
+				", weight=" + weight +
+				", hits=" + hits +
+				", misses=" + misses +
+				", spillHits=" + spillHits +
+				", evictions=" + evictions +
+				'}';
+	}
+
+	private <T> T read(Reader input, Class<T> type, boolean json) throws Exception {
+		char[] content;
+		synchronized (this) {
+			// the buffer is in use, the concurrent reads allocate their own buffer
+			content = buffer != null ? buffer : new char[4096];
+			buffer = null;
+		}
+
+		try {
+			// the documents longer than the limit are not cached, stop buffering them
+			long maxLength = Math.min(maxWeight, Integer.MAX_VALUE - 8);
+			int length = 0;
+			for (int n; (n = input.read(content, length, content.length - length)) >= 0; ) {
+				length += n;
+				if (length > maxLength) {
+					synchronized (this) {
+						misses += 1;
+					}
+					Reader reader = new SequenceReader(new CharArrayReader(content, 0, length), input);
+					return parse(reader, type, json);
+				}
+				if (length == content.length) {
+					content = Arrays.copyOf(content, (int) Math.min(2L * content.length, maxLength + 1));
+				}
+			}
+
+			Key key = new Key(type, digest(json, content, length), length);
+			Object cached = get(key);
+			if (cached != null) {
+				return type.cast(cached);
+			}
+
+			T result = parse(new CharArrayReader(content, 0, length), type, json);
+			if (result != null) {
+				put(key, result, length);
+			}
+			return result;
+		}
+		finally {
+			if (content.length <= MAX_BUFFER) {
+				synchronized (this) {
+					if (buffer == null || buffer.length < content.length) {
+						buffer = content;
+					}
+				}
+			}
+		}
+	}
+
+	private <T> T parse(Reader reader, Class<T> type, boolean json) throws Exception {
+		XmlParser parser = newParser();
+		return json ? parser.readJson(reader, type) : parser.readValue(reader, type);
+	}
+
+	private Object get(Key key) {
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null) {
+				hits += 1;
+				return entry.value;
+			}
+			if (!spilled.remove(key)) {
+				misses += 1;
+				return null;
+			}
+		}
+
+		// the file is claimed by removing the key, it is read without holding the lock
+		Object value = readSpill(key);
+		ArrayList<Map.Entry<Key, Entry>> evicted;
+		synchronized (this) {
+			if (value == null) {
+				misses += 1;
+				return null;
+			}
+			hits += 1;
+			spillHits += 1;
+			if (entries.containsKey(key)) {
+				return value;
+			}
+			evicted = putEntry(key, value, key.length);
+		}
+		writeSpill(evicted);
+		return value;
+	}
+
+	private void put(Key key, Object value, int length) {
+		ArrayList<Map.Entry<Key, Entry>> evicted;
+		synchronized (this) {
+			if (length > maxWeight || entries.containsKey(key)) {
+				return;
+			}
+			evicted = putEntry(key, value, length);
+		}
+		writeSpill(evicted);
+	}
+
+	/**
+	 * Add the entry and evict the least recently used ones.
+	 * @return the evicted entries, to be spilled without holding the lock
+	 */
+	private ArrayList<Map.Entry<Key, Entry>> putEntry(Key key, Object value, int length) {
+		entries.put(key, new Entry(value, length));
+		weight += length;
+
+		ArrayList<Map.Entry<Key, Entry>> result = new ArrayList<>();
+		Iterator<Map.Entry<Key, Entry>> eldest = entries.entrySet().iterator();
+		while (weight > maxWeight && eldest.hasNext()) {
+			Map.Entry<Key, Entry> entry = eldest.next();
+			eldest.remove();
+			weight -= entry.getValue().length;
+			evictions += 1;
+			result.add(entry);
+		}
+		return result;
+	}
+
+	private void writeSpill(ArrayList<Map.Entry<Key, Entry>> evicted) {
+		if (spill == null) {
+			return;
+		}
+		int generation;
+		synchronized (this) {
+			generation = this.generation;
+		}
+		for (Map.Entry<Key, Entry> entry : evicted) {
+			Key key = entry.getKey();
+			Object value = entry.getValue().value;
+			if (!(value instanceof Serializable)) {
+				continue;
+			}
+			File file = key.file(spill);
+			try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file))) {
+				out.writeObject(value);
+			} catch (IOException e) {
+				Log.w(TAG, "failed to spill value: " + key, e);
+				deleteFile(file);
+				continue;
+			}
+			synchronized (this) {
+				// the value can be spilled only if the cache was not cleared, and the value was not loaded again
+				if (generation == this.generation && !entries.containsKey(key)) {
+					spilled.add(key);
+					continue;
+				}
+			}
+			deleteFile(file);
+		}
+	}
+
+	private Object readSpill(Key key) {
+		File file = key.file(spill);
+		try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(file))) {
+			return in.readObject();
+		} catch (Exception e) {
+			Log.w(TAG, "failed to load spilled value: " + key, e);
+			return null;
+		} finally {
+			// the value is back in memory, or it is unreadable
+			deleteFile(file);
+		}
+	}
+
+	/**
+	 * Delete the values left in the spill directory by earlier processes, they can not be loaded.
+	 */
+	private void deleteSpill() {
+		File[] files = spill == null ? null : spill.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			if (file.getName().endsWith(SPILL_SUFFIX)) {
+				deleteFile(file);
+			}
+		}
+	}
+
+	private static void deleteFile(File file) {
+		if (file.exists() && !file.delete()) {
+			Log.w(TAG, "failed to delete spilled value: " + file);
+		}
+	}
+
+	/**
+	 * SHA-256 digest of the characters and of the kind of the document.
+	 */
+	private static byte[] digest(boolean json, char[] chars, int length) throws NoSuchAlgorithmException {
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		digest.update((byte) (json ? 1 : 0));
+		byte[] bytes = new byte[2 * Math.min(length, 4096)];
+		for (int i = 0; i < length; ) {
+			int count = Math.min(length - i, bytes.length / 2);
+			for (int n = 0; n < count; n += 1) {
+				char chr = chars[i + n];
+				bytes[2 * n] = (byte) (chr >> 8);
+				bytes[2 * n + 1] = (byte) chr;
+			}
+			digest.update(bytes, 0, 2 * count);
+			i += count;
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * Reader of the buffered beginning of the input, followed by the rest of the input.
+	 */
+	private static class SequenceReader extends Reader {
+		private final Reader head;
+		private final Reader tail;
+		private boolean headDone = false;
+
+		private SequenceReader(Reader head, Reader tail) {
+			this.head = head;
+			this.tail = tail;
+		}
+
+		@Override
+		public int read(char[] buffer, int offset, int length) throws IOException {
+			if (!headDone) {
+				int result = head.read(buffer, offset, length);
+				if (result >= 0) {
+					return result;
+				}
+				headDone = true;
+			}
+			return tail.read(buffer, offset, length);
+		}
+
+		@Override
+		public void close() throws IOException {
+			tail.close();
+		}
+	}
+
+	private static class Key {
+		private final Class<?> type;
+		private final byte[] digest;
+		private final int length;
+
+		private Key(Class<?> type, byte[] digest, int length) {
+			this.type = type;
+			this.digest = digest;
+			this.length = length;
+		}
+
+		private File file(File directory) {
+			return new File(directory, type.getName() + '-' + hex() + '-' + length + SPILL_SUFFIX);
+		}
+
+		private String hex() {
+			StringBuilder result = new StringBuilder(2 * digest.length);
+			for (byte value : digest) {
+				result.append(Character.forDigit((value >> 4) & 0xf, 16)).append(Character.forDigit(value & 0xf, 16));
+			}
+			return result.toString();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) o;
+			return length == key.length && type == key.type && Arrays.equals(digest, key.digest);
+		}
+
+		@Override
+		public int hashCode() {
+			// the digest is uniformly distributed
+			return (digest[0] & 0xff) << 24 | (digest[1] & 0xff) << 16 | (digest[2] & 0xff) << 8 | (digest[3] & 0xff);
+		}
+
+		@Override
+		public String toString() {
+			return type.getSimpleName() + '@' + hex() + ':' + length;
+		}
+	}
+
+	private static class Entry {
+		private final Object value;
+		private final int length;
+
+		private Entry(Object value, int length) {
+			this.value = value;
+			this.length = length;
+		}
+	}
+}
@@ -1,12 +1,18 @@
 package kmz.utils;
 
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
 import android.util.Xml;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.Reader;
+import java.io.StringReader;
+import java.lang.annotation.Annotation;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
@@ -14,19 +20,39 @@ import java.lang.annotation.Target;
 import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.nio.CharBuffer;
+import java.time.DateTimeException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.TemporalAccessor;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
 
-// todo: add a dictionary / map parser/mapper
 // todo: maybe split this file, extract the inner parser classes
 // todo: maybe allow annotation on class declarations, not only on fields
 
 /**
  * Simple Gson like Xml deserializer.
+ * <p>
+ * Json documents can be deserialized using the same annotations and mappers with {@link #readJson(Reader, Class)}.
  * @see XmlParserTest for more information on usage
  */
 public class XmlParser {
@@ -45,9 +71,20 @@ public class XmlParser {
 	 * {@link Name#wrapper()} can be used in case the value or list of values are wrapped inside an extra tag
 	 * <p>
 	 * {@link Name#mapper()} can be used in case the value needs to be mapped with a custom parser
+	 * <p>
+	 * {@link Name#key()} specifies the source of the keys for {@link Map} and {@link LongMap} fields:
+	 * an attribute of the entry `@name`, a child element of the entry `name`,
+	 * or empty to use the tag names of the entries inside the wrapper.
+	 * <p>
+	 * {@link Name#format()} specifies the {@link DateTimeFormatter} pattern of java.time values,
+	 * ISO-8601 is used if not specified.
+	 * <p>
+	 * Immutable types are bound with the constructor having all the parameters annotated,
+	 * or with the canonical constructor of records, the values are passed to the constructor
+	 * after the end tag of the element, missing primitive values are zero or false.
 	 */
 	@Retention(RetentionPolicy.RUNTIME)
-	@Target(ElementType.FIELD)
+	@Target({ElementType.FIELD, ElementType.PARAMETER})
 	public @interface Name {
 
 		String name();
@@ -55,6 +92,63 @@ public class XmlParser {
 		String wrapper() default "";
 
 		Class<? extends Mapper> mapper() default Mapper.class;
+
+		String key() default "";
+
+		String format() default "";
+	}
+
+	/**
+	 * Polymorphic binding annotation, to be used on fields or on the declaration of the base class.
+	 * <p>
+	 * The subtype is selected by the tag name of the element,
+	 * or by the value of the discriminator attribute if {@link Subtypes#attribute()} is specified.
+	 * Elements not matching any of the subtypes are bound to the annotated type, or skipped if it is abstract.
+	 * Polymorphic values are not supported in json documents.
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target({ElementType.FIELD, ElementType.PARAMETER, ElementType.TYPE})
+	public @interface Subtypes {
+
+		String attribute() default "";
+
+		Subtype[] value();
+	}
+
+	/**
+	 * Subtype selected by the tag name or by the discriminator attribute value.
+	 * @see Subtypes
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target({})
+	public @interface Subtype {
+
+		String name();
+
+		Class<?> type();
+	}
+
+	/**
+	 * Lookup options of enumerated types, to be used on the declaration of the enum.
+	 * <p>
+	 * The constants are matched by their name, or by the name of the {@link Name} annotation on the constant.
+	 * <p>
+	 * {@link EnumLookup#ignoreCase()} matches the names ignoring the case of the letters
+	 * <p>
+	 * {@link EnumLookup#unknown()} name of the constant used for the values not matching any of the constants,
+	 * the value is null if not specified
+	 * <p>
+	 * {@link EnumLookup#strict()} rejects the values not matching any of the constants
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.TYPE)
+	public @interface EnumLookup {
+
+		boolean ignoreCase() default false;
+
+		String unknown() default "";
+
+		boolean strict() default false;
 	}
 
 	/**
@@ -65,35 +159,352 @@ public class XmlParser {
 		T valueOf(String value) throws Exception;
 	}
 
+	/**
+	 * Receiver of the values deserialized from a stream of documents.
+	 * @param <T> the type of the values
+	 * @see #readValues(Reader, Class, Receiver)
+	 */
+	public interface Receiver<T> {
+		/**
+		 * @return false to stop reading the stream
+		 */
+		boolean onValue(T value) throws Exception;
+	}
+
+	/**
+	 * Visitor receiving the values of a document without constructing the entities.
+	 * <p>
+	 * The values are delivered with the field they would be bound to, primitive values are not boxed.
+	 * Override only the methods for the needed types, by default primitives are boxed and delivered to {@link #onValue(Field, Object)}.
+	 * Lazy fields are skipped.
+	 * @see #visitValue(Reader, Class, Visitor)
+	 */
+	public static abstract class Visitor {
+		/**
+		 * Start of an object, the field is null for the root object,
+		 * or for constructor arguments not having a field with the same name and type.
+		 */
+		public void onBegin(Field field, Class<?> type) throws Exception {}
+
+		/**
+		 * End of an object, the field is null the same way as for {@link #onBegin(Field, Class)}.
+		 */
+		public void onEnd(Field field, Class<?> type) throws Exception {}
+
+		public void onValue(Field field, Object value) throws Exception {}
+
+		public void onValue(Field field, boolean value) throws Exception {
+			onValue(field, (Object) value);
+		}
+
+		public void onValue(Field field, int value) throws Exception {
+			onValue(field, (Object) value);
+		}
+
+		public void onValue(Field field, long value) throws Exception {
+			onValue(field, (Object) value);
+		}
+
+		public void onValue(Field field, float value) throws Exception {
+			onValue(field, (Object) value);
+		}
+
+		public void onValue(Field field, double value) throws Exception {
+			onValue(field, (Object) value);
+		}
+	}
+
+	/**
+	 * Lazy field type, to defer the binding of large and rarely used subtrees.
+	 * <p>
+	 * While parsing the document only the markup of the element is recorded (the subtree is skipped),
+	 * the value is deserialized on the first call of {@link Lazy#get()}.
+	 * @param <T> the type of the deserialized value
+	 */
+	public static final class Lazy<T> {
+		private static final String ROOT = "lazy";
+
+		private final Class<T> type;
+		private String source;
+		private T value;
+
+		// limits of the parser recording the element, the depth is relative to the recorded element
+		private final int maxDepth;
+		private final int maxElements;
+		private final int maxTextLength;
+		private final int maxCollectionSize;
+
+		private Lazy(Class<T> type, String source, XmlParser parser, int maxDepth) {
+			this.type = type;
+			this.source = source;
+			this.maxDepth = maxDepth;
+			this.maxElements = parser.maxElements;
+			this.maxTextLength = parser.maxTextLength;
+			this.maxCollectionSize = parser.maxCollectionSize;
+		}
+
+		private Lazy(Class<T> type, String source, Lazy<?> limits) {
+			this.type = type;
+			this.source = source;
+			this.maxDepth = limits.maxDepth;
+			this.maxElements = limits.maxElements;
+			this.maxTextLength = limits.maxTextLength;
+			this.maxCollectionSize = limits.maxCollectionSize;
+		}
+
+		/**
+		 * The value is deserialized with the limits of the parser which recorded the element.
+		 */
+		public synchronized T get() throws Exception {
+			if (source != null) {
+				XmlParser parser = new XmlParser()
+						.setMaxDepth(maxDepth)
+						.setMaxElements(maxElements)
+						.setMaxTextLength(maxTextLength)
+						.setMaxCollectionSize(maxCollectionSize);
+				String document = source;
+				if (isCollection(type)) {
+					// the recorded elements are the items, enclose them in a synthetic root
+					document = "<" + ROOT + ">" + source + "</" + ROOT + ">";
+				}
+				value = parser.readValue(new StringReader(document), type);
+				source = null;
+			}
+			return value;
+		}
+
+		private static boolean isCollection(Class<?> type) {
+			return type.isArray() || Collection.class.isAssignableFrom(type);
+		}
+	}
+
+
+	/**
+	 * Exception thrown when the document exceeds one of the configured limits.
+	 * @see #setMaxDepth(int)
+	 * @see #setMaxElements(int)
+	 * @see #setMaxTextLength(int)
+	 * @see #setMaxCollectionSize(int)
+	 */
+	public static class LimitExceededException extends XmlPullParserException {
+		public LimitExceededException(String message) {
+			super(message);
+		}
+	}
+
 
 	protected final XmlPullParser parser;
 
+	// limits, to abort parsing of malformed or hostile documents early
+	private int maxDepth = Integer.MAX_VALUE;
+	private int maxElements = Integer.MAX_VALUE;
+	private int maxTextLength = Integer.MAX_VALUE;
+	private int maxCollectionSize = Integer.MAX_VALUE;
+
+	// usage of the limits in the current document
+	private final int[] textRange = new int[2];
+	private int elements = 0;
+	private int collectionSize = 0;
+	private int rootDepth = 1;
+	private int jsonDepth = 0;
+
+	// stop at the end tag of the root elements, so a stream is not read ahead before the value is delivered
+	private boolean holdRootEnd = false;
+
+	// reusable buffer for the text of the current value, coalesced from the adjacent text events
+	private char[] text = new char[256];
+
+	// reusable argument buffers of the objects bound with constructors, one for each nesting level
+	private Object[][] arguments = new Object[8][];
+	private int argumentsDepth = 0;
+
+	// moving averages of the sizes of the arrays, collections and maps of each mapper, used to pre-size them
+	private final IdentityHashMap<ValueParser<?>, int[]> expectedSizes = new IdentityHashMap<>();
+
+	// parser of the root arrays, reused so the sizes are observed across the documents
+	private ArrayParser rootArray = null;
+
 	public XmlParser() throws XmlPullParserException {
 		parser = Xml.newPullParser();
 		parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
 	}
 
+	/**
+	 * Limit the nesting depth of the elements, the root element has depth 1.
+	 * In json documents the nesting of the objects and arrays is limited, the root value has depth 1.
+	 */
+	public XmlParser setMaxDepth(int maxDepth) {
+		this.maxDepth = maxDepth;
+		return this;
+	}
+
+	/**
+	 * Limit the total number of elements in the document.
+	 */
+	public XmlParser setMaxElements(int maxElements) {
+		this.maxElements = maxElements;
+		return this;
+	}
+
+	/**
+	 * Limit the length of a text node (in characters).
+	 */
+	public XmlParser setMaxTextLength(int maxTextLength) {
+		this.maxTextLength = maxTextLength;
+		return this;
+	}
+
+	/**
+	 * Limit the total number of values bound to arrays and collections in the document.
+	 */
+	public XmlParser setMaxCollectionSize(int maxCollectionSize) {
+		this.maxCollectionSize = maxCollectionSize;
+		return this;
+	}
+
+	/**
+	 * Compile and validate the binding of the types in advance, instead of on the first use.
+	 * Misconfigured types, like colliding names or collections without type arguments, are reported here,
+	 * and are not cached, the same error is reported on each use.
+	 */
+	public static void register(Class<?>... types) throws XmlPullParserException {
+		for (Class<?> type : types) {
+			new TypeInfo(type, null, null);
+		}
+	}
+
 	public <T> T readValue(Reader input, Class<T> type) throws Exception {
-		parser.setInput(input);
+		setInput(input, 1);
+		consume(XmlPullParser.START_DOCUMENT, 0, null);
+		require(XmlPullParser.START_TAG, 1, null);
+		TypeInfo root = new TypeInfo(type, parser.getName(), null);
+		Object result = readRoot(root, null);
+		consume(XmlPullParser.END_DOCUMENT, 0, null);
+		return type.cast(result);
+	}
+
+	/**
+	 * Traverse the document using the binding metadata of the type, passing the values to the visitor.
+	 * Aggregations can be computed this way without constructing the entities.
+	 */
+	public void visitValue(Reader input, Class<?> type, Visitor visitor) throws Exception {
+		setInput(input, 1);
 		consume(XmlPullParser.START_DOCUMENT, 0, null);
 		require(XmlPullParser.START_TAG, 1, null);
-		String rootTag = parser.getName();
-		TypeInfo root = new TypeInfo(type, rootTag, null);
-		Object result;
-
-		if (root.collection != null) {
-			// todo: both parsing should be similarly handled
-			consume(XmlPullParser.START_TAG, 1, rootTag);
-			require(XmlPullParser.START_TAG, 2, null); // skip over any empty text to next tag
-			ArrayParser arrParser = new ArrayParser(root.type, parser.getName(), null);
+		TypeInfo root = new TypeInfo(type, parser.getName(), null);
+		readRoot(root, visitor);
+		consume(XmlPullParser.END_DOCUMENT, 0, null);
+	}
+
+	/**
+	 * Deserialize a continuous stream of concatenated root elements, like `&lt;a/&gt;&lt;a/&gt;...`.
+	 * <p>
+	 * The values are passed to the receiver as soon as their element is closed,
+	 * reading stops at the end of the input or when the receiver returns false.
+	 * The limits are applied to each element separately.
+	 * The elements must not be preceded by xml declarations.
+	 */
+	public <T> void readValues(Reader input, Class<T> type, Receiver<? super T> receiver) throws Exception {
+		// enclose the elements in a synthetic root, so the stream is a single well-formed document
+		setInput(new StreamReader(input), 2);
+		consume(XmlPullParser.START_DOCUMENT, 0, null);
+		consume(XmlPullParser.START_TAG, 1, StreamReader.ROOT);
+
+		TypeInfo root = null;
+		while (!peek(XmlPullParser.END_TAG, 1)) {
+			require(XmlPullParser.START_TAG, 2, null);
+			if (root == null || !root.name.equals(parser.getName())) {
+				root = new TypeInfo(type, parser.getName(), null);
+			}
+			elements = 1;
+			collectionSize = 0;
+			Object value;
+			holdRootEnd = true;
+			try {
+				value = readRoot(root, null);
+			} finally {
+				holdRootEnd = false;
+			}
+			if (!receiver.onValue(type.cast(value))) {
+				return;
+			}
+			// advance past the end tag of the delivered element
+			next();
+		}
+
+		consume(XmlPullParser.END_TAG, 1, StreamReader.ROOT);
+		consume(XmlPullParser.END_DOCUMENT, 0, null);
+	}
+
+	public <T> void readValues(InputStream input, String encoding, Class<T> type, Receiver<? super T> receiver) throws Exception {
+		readValues(new InputStreamReader(input, encoding == null ? "UTF-8" : encoding), type, receiver);
+	}
+
+	/**
+	 * Extract the values selected by the query in a single pass, passing them to the handler.
+	 * @see XmlQuery
+	 */
+	public void query(Reader input, XmlQuery query, XmlQuery.Handler handler) throws Exception {
+		setInput(input, 1);
+		query.run(this, handler);
+	}
+
+	private void setInput(Reader input, int rootDepth) throws XmlPullParserException {
+		parser.setInput(input);
+		this.rootDepth = rootDepth;
+		this.elements = 0;
+		this.collectionSize = 0;
+		releaseArguments();
+	}
+
+	private Object readRoot(TypeInfo root, Visitor visitor) throws Exception {
+		if (root.collection == null) {
+			if (visitor != null) {
+				root.mapper.visit(this, root, null, visitor);
+				return null;
+			}
+			return root.mapper.parse(this, root);
+		}
+
+		// todo: both parsing should be similarly handled
+		int depth = parser.getDepth();
+		consume(XmlPullParser.START_TAG, depth, root.name);
+		require(XmlPullParser.START_TAG, depth + 1, null); // skip over any empty text to next tag
+		if (rootArray == null || rootArray.values.type != root.type || !rootArray.values.name.equals(parser.getName())) {
+			rootArray = new ArrayParser(root.type, parser.getName(), null);
+		}
+		ArrayParser arrParser = rootArray;
+		Object result = null;
+		if (visitor != null) {
+			arrParser.visit(this, arrParser.values, null, visitor);
+		} else {
 			ArrayList<?> values = arrParser.parse(this, arrParser.values);
 			result = root.mergeArray(null, values);
-			consume(XmlPullParser.END_TAG, 1, rootTag);
-		} else {
-			result = root.mapper.parse(this, root);
+		}
+		consume(XmlPullParser.END_TAG, depth, root.name);
+		return result;
+	}
+
+	/**
+	 * Deserialize a json document, using the same binding metadata (annotations, mappers and type cache) as xml.
+	 * <p>
+	 * Object members are matched by the wrapper or the name of the fields, attributes and child elements are not distinguished.
+	 */
+	public <T> T readJson(Reader input, Class<T> type) throws Exception {
+		JsonReader reader = new JsonReader(input);
+		collectionSize = 0;
+		jsonDepth = 0;
+		releaseArguments();
+
+		TypeInfo root = new TypeInfo(type, null, null);
+		Object result = root.mapper.parseJson(this, reader, root);
+		if (root.collection != null && result != null) {
+			result = root.mergeArray(null, (ArrayList<?>) result);
 		}
 
-		consume(XmlPullParser.END_DOCUMENT, 0, null);
+		if (reader.peek() != JsonToken.END_DOCUMENT) {
+			throw new XmlPullParserException("expected end of json document, found: " + reader.peek());
+		}
 		return type.cast(result);
 	}
 
@@ -112,14 +523,157 @@ public class XmlParser {
 
 	protected void consume(int type, int depth, String name) throws XmlPullParserException, IOException {
 		require(type, depth, name);
-		parser.next();
+		next();
+	}
+
+	/**
+	 * Advance to the next event, checking the configured limits.
+	 */
+	protected int next() throws XmlPullParserException, IOException {
+		if (holdRootEnd && parser.getEventType() == XmlPullParser.END_TAG && parser.getDepth() == rootDepth) {
+			// the root element is complete, the next event might not be available yet
+			return XmlPullParser.END_TAG;
+		}
+		int event = parser.next();
+		switch (event) {
+			case XmlPullParser.START_TAG:
+				if (parser.getDepth() - rootDepth >= maxDepth) {
+					throw new LimitExceededException("maximum depth exceeded: " + maxDepth + " at: " + parser.getPositionDescription());
+				}
+				if (++elements > maxElements) {
+					throw new LimitExceededException("maximum element count exceeded: " + maxElements + " at: " + parser.getPositionDescription());
+				}
+				break;
+
+			case XmlPullParser.TEXT:
+				if (maxTextLength == Integer.MAX_VALUE) {
+					break;
+				}
+				// the length of the text without creating a string
+				parser.getTextCharacters(textRange);
+				if (textRange[1] > maxTextLength) {
+					throw new LimitExceededException("maximum text length exceeded: " + maxTextLength + " at: " + parser.getPositionDescription());
+				}
+				break;
+		}
+		return event;
+	}
+
+	/**
+	 * Enter a json object or array, checking the configured depth limit.
+	 */
+	protected void beginJson(JsonReader reader, JsonToken token) throws XmlPullParserException, IOException {
+		if (++jsonDepth > maxDepth) {
+			throw new LimitExceededException("maximum depth exceeded: " + maxDepth + " at: " + reader);
+		}
+		if (token == JsonToken.BEGIN_ARRAY) {
+			reader.beginArray();
+		} else {
+			reader.beginObject();
+		}
+	}
+
+	protected void endJson(JsonReader reader, JsonToken token) throws IOException {
+		if (token == JsonToken.END_ARRAY) {
+			reader.endArray();
+		} else {
+			reader.endObject();
+		}
+		jsonDepth -= 1;
+	}
+
+	/**
+	 * Count the values added to arrays and collections, checking the configured limit.
+	 */
+	protected void collect(int count) throws XmlPullParserException {
+		collectionSize += count;
+		if (collectionSize > maxCollectionSize) {
+			throw new LimitExceededException("maximum collection size exceeded: " + maxCollectionSize + " at: " + parser.getPositionDescription());
+		}
+	}
+
+	/**
+	 * Read the current text and the adjacent text events (entities, cdata sections, ...) into the reusable buffer.
+	 * @return the length of the text in the buffer
+	 */
+	protected int readText() throws XmlPullParserException, IOException {
+		int length = 0;
+		while (parser.getEventType() == XmlPullParser.TEXT) {
+			char[] chars = parser.getTextCharacters(textRange);
+			int size = textRange[1];
+			if (length + size > maxTextLength) {
+				throw new LimitExceededException("maximum text length exceeded: " + maxTextLength + " at: " + parser.getPositionDescription());
+			}
+			if (length + size > text.length) {
+				text = Arrays.copyOf(text, Math.max(2 * text.length, length + size));
+			}
+			System.arraycopy(chars, textRange[0], text, length, size);
+			length += size;
+			next();
+		}
+		return length;
+	}
+
+	/**
+	 * Check the length of a text assembled from several events, like the descendant text of a query.
+	 */
+	void checkTextLength(int length) throws XmlPullParserException {
+		if (length > maxTextLength) {
+			throw new LimitExceededException("maximum text length exceeded: " + maxTextLength + " at: " + parser.getPositionDescription());
+		}
+	}
+
+	/**
+	 * Returns the expected number of values of the mapper, limited by the collection limit, or -1 if there is no history.
+	 */
+	private int expectedSize(ValueParser<?> mapper) {
+		int[] expected = expectedSizes.get(mapper);
+		return expected == null ? -1 : Math.min(expected[0], maxCollectionSize);
+	}
+
+	private void observeSize(ValueParser<?> mapper, int size) {
+		int[] expected = expectedSizes.get(mapper);
+		if (expected == null) {
+			expectedSizes.put(mapper, new int[] {size});
+			return;
+		}
+		// rounding up, so the average reaches the steady-state count
+		expected[0] = (3 * expected[0] + size + 3) / 4;
+	}
+
+	/**
+	 * Returns the cleared argument buffer for the next nesting level.
+	 */
+	private Object[] pushArguments(int size) {
+		if (argumentsDepth == arguments.length) {
+			arguments = Arrays.copyOf(arguments, 2 * arguments.length);
+		}
+		Object[] result = arguments[argumentsDepth];
+		if (result == null || result.length != size) {
+			result = new Object[size];
+			arguments[argumentsDepth] = result;
+		}
+		argumentsDepth += 1;
+		return result;
+	}
+
+	private void popArguments() {
+		argumentsDepth -= 1;
+		Arrays.fill(arguments[argumentsDepth], null);
+	}
+
+	// drop the references left in the buffers by an aborted document
+	private void releaseArguments() {
+		while (argumentsDepth > 0) {
+			popArguments();
+		}
 	}
 
 	protected boolean peek(int type, int depth) throws XmlPullParserException, IOException {
 		if (type != XmlPullParser.TEXT && parser.getEventType() == XmlPullParser.TEXT) {
-			// skip blank text (tabs spaces and new lines) between tags
-			if (parser.getText().isBlank()) {
-				parser.next();
+			// skip blank text (tabs spaces and new lines) between tags, without creating a string
+			if (parser.isWhitespace()) {
+				next();
 			}
 		}
 		if (depth >= 0 && depth != parser.getDepth()) {
@@ -130,147 +684,1412 @@ public class XmlParser {
 
 	protected void skip() throws XmlPullParserException, IOException {
 		if (peek(XmlPullParser.TEXT, -1)) {
-			parser.next();
+			next();
 			return;
 		}
 
 		int depth = parser.getDepth();
 		require(XmlPullParser.START_TAG, depth, null);
 		while (!peek(XmlPullParser.END_TAG, depth)) {
-			parser.next();
+			next();
 		}
 		consume(XmlPullParser.END_TAG, depth, null);
 	}
 
+	/**
+	 * Skip the current element, while copying its markup to the given output.
+	 */
+	protected void skip(StringBuilder out) throws XmlPullParserException, IOException {
+		int depth = parser.getDepth();
+		require(XmlPullParser.START_TAG, depth, null);
+		do {
+			switch (parser.getEventType()) {
+				case XmlPullParser.START_TAG:
+					out.append('<').append(parser.getName());
+					for (int i = 0; i < parser.getAttributeCount(); i += 1) {
+						out.append(' ').append(parser.getAttributeName(i)).append("=\"");
+						escape(out, parser.getAttributeValue(i));
+						out.append('"');
+					}
+					out.append('>');
+					break;
+
+				case XmlPullParser.END_TAG:
+					out.append("</").append(parser.getName()).append('>');
+					break;
+
+				case XmlPullParser.TEXT:
+					escape(out, parser.getText());
+					break;
+			}
+			next();
+		} while (!peek(XmlPullParser.END_TAG, depth));
+		out.append("</").append(parser.getName()).append('>');
+		consume(XmlPullParser.END_TAG, depth, null);
+	}
 
 	/**
-	 * Internal mapper for parsing value types, like text, number, ...
+	 * Reader enclosing the input in a synthetic root element.
 	 */
-	private static class ValueParser<T> implements Mapper<T> {
+	private static class StreamReader extends Reader {
+		private static final String ROOT = "stream";
+		private static final String START = "<" + ROOT + ">";
+		private static final String END = "</" + ROOT + ">";
 
-		@Override
-		public T valueOf(String value) throws Exception {
-			throw new XmlPullParserException("Use a Custom mapper to convert values");
-		}
+		private final Reader input;
+		private String text = START;
+		private int position = 0;
 
-		protected T parse(XmlParser parser, TypeInfo type) throws Exception {
-			int depth = parser.parser.getDepth();
-			int wrapped = depth;
+		private StreamReader(Reader input) {
+			this.input = input;
+		}
 
-			if (type.name != null && !type.name.isEmpty()) {
-				parser.consume(XmlPullParser.START_TAG, depth, type.name);
-				if (parser.peek(XmlPullParser.END_TAG, depth)) {
-					parser.consume(XmlPullParser.END_TAG, depth, type.name);
-					// no text for constructs like: `<tag/>`
-					return valueOf(null);
+		@Override
+		public int read(char[] buffer, int offset, int length) throws IOException {
+			if (text == START && position == START.length()) {
+				int result = input.read(buffer, offset, length);
+				if (result >= 0) {
+					return result;
 				}
-				wrapped = depth + 1;
+				text = END;
+				position = 0;
+			}
+			if (position == text.length()) {
+				return -1;
 			}
+			int result = Math.min(length, text.length() - position);
+			text.getChars(position, position + result, buffer, offset);
+			position += result;
+			return result;
+		}
 
-			parser.require(XmlPullParser.TEXT, depth, null);
-			T result = valueOf(parser.parser.getText());
-			parser.parser.next();
+		@Override
+		public void close() throws IOException {
+			input.close();
+		}
+	}
 
-			if (wrapped != depth) {
-				parser.consume(XmlPullParser.END_TAG, depth, type.name);
+	private static void escape(StringBuilder out, String text) {
+		for (int i = 0; i < text.length(); i += 1) {
+			char chr = text.charAt(i);
+			switch (chr) {
+				case '&':
+					out.append("&amp;");
+					break;
+				case '<':
+					out.append("&lt;");
+					break;
+				case '>':
+					out.append("&gt;");
+					break;
+				case '"':
+					out.append("&quot;");
+					break;
+				default:
+					out.append(chr);
+					break;
 			}
-			return result;
 		}
 	}
 
+
 	/**
-	 * Internal mapper for parsing arrays and collections
+	 * Internal mapper for parsing value types, like text, number, ...
+	 */
+	private static class ValueParser<T> implements Mapper<T> {
+
+		@Override
+		public T valueOf(String value) throws Exception {
+			throw new XmlPullParserException("Use a Custom mapper to convert values");
+		}
+
+		/**
+		 * Deliver the converted value to the visitor, primitive mappers override this to avoid boxing.
+		 */
+		protected void visitValue(Visitor visitor, Field field, String value) throws Exception {
+			T result = valueOf(value);
+			if (result != null) {
+				visitor.onValue(field, result);
+			}
+		}
+
+		/**
+		 * Convert the text from the buffer of the parser, override to avoid creating the string.
+		 */
+		protected T valueOf(char[] chars, int start, int length) throws Exception {
+			return valueOf(new String(chars, start, length));
+		}
+
+		protected T parse(XmlParser parser, TypeInfo type) throws Exception {
+			int length = text(parser, type);
+			if (length < 0) {
+				return valueOf(null);
+			}
+			return valueOf(parser.text, 0, length);
+		}
+
+		/**
+		 * Additional tag names of the elements handled by this parser, beside the name of the field.
+		 */
+		protected Collection<String> aliases() {
+			return Collections.emptyList();
+		}
+
+		/**
+		 * Check if the element with the given tag name is handled by this parser.
+		 */
+		protected boolean accepts(TypeInfo type, String tag) {
+			return type.name.equals(tag);
+		}
+
+		protected void visit(XmlParser parser, TypeInfo type, Field field, Visitor visitor) throws Exception {
+			int length = text(parser, type);
+			visitValue(visitor, field, length < 0 ? null : new String(parser.text, 0, length));
+		}
+
+		/**
+		 * Read the text of the value into the buffer of the parser.
+		 * @return the length of the text, or -1 if there is no text
+		 */
+		private static int text(XmlParser parser, TypeInfo type) throws Exception {
+			int depth = parser.parser.getDepth();
+			int wrapped = depth;
+
+			// null name matches the element with any tag name
+			if (type.name == null ? parser.parser.getEventType() == XmlPullParser.START_TAG : !type.name.isEmpty()) {
+				parser.consume(XmlPullParser.START_TAG, depth, type.name);
+				if (parser.peek(XmlPullParser.END_TAG, depth)) {
+					parser.consume(XmlPullParser.END_TAG, depth, type.name);
+					// no text for constructs like: `<tag/>`
+					return -1;
+				}
+				wrapped = depth + 1;
+			}
+
+			parser.require(XmlPullParser.TEXT, depth, null);
+			int result = parser.readText();
+
+			if (wrapped != depth) {
+				parser.consume(XmlPullParser.END_TAG, depth, type.name);
+			}
+			return result;
+		}
+
+		protected T parseJson(XmlParser parser, JsonReader reader, TypeInfo type) throws Exception {
+			switch (reader.peek()) {
+				case NULL:
+					reader.nextNull();
+					return null;
+
+				case BOOLEAN:
+					return valueOf(String.valueOf(reader.nextBoolean()));
+
+				case STRING:
+				case NUMBER:
+					return valueOf(reader.nextString());
+			}
+			throw new XmlPullParserException("expected json value, found: " + reader.peek() + " for: " + type);
+		}
+	}
+
+	/**
+	 * Internal mapper for parsing arrays and collections
 	 */
 	private static class ArrayParser extends ValueParser<ArrayList<Object>> {
 		private final TypeInfo values;
 
-		public ArrayParser(Class<?> type, String name, ValueParser<?> mapper) throws XmlPullParserException {
-			this.values = new TypeInfo(type, name, mapper);
+		public ArrayParser(Class<?> type, String name, ValueParser<?> mapper) throws XmlPullParserException {
+			this.values = new TypeInfo(type, name, mapper);
+		}
+
+		private ArrayList<Object> newList(XmlParser parser) {
+			int size = parser.expectedSize(this);
+			return size < 0 ? new ArrayList<>() : new ArrayList<>(size);
+		}
+
+		private ArrayList<Object> observe(XmlParser parser, ArrayList<Object> result) {
+			parser.observeSize(this, result.size());
+			return result;
+		}
+
+		@Override
+		protected ArrayList<Object> parse(XmlParser parser, TypeInfo type) throws Exception {
+			return parse(parser, type, null, null);
+		}
+
+		@Override
+		protected void visit(XmlParser parser, TypeInfo type, Field field, Visitor visitor) throws Exception {
+			parse(parser, type, field, visitor);
+		}
+
+		private ArrayList<Object> parse(XmlParser parser, TypeInfo type, Field field, Visitor visitor) throws Exception {
+			int depth = parser.parser.getDepth();
+			int wrapped = depth;
+
+			if (!type.wrapper.isEmpty()) {
+				parser.consume(XmlPullParser.START_TAG, depth, type.wrapper);
+				if (parser.peek(XmlPullParser.END_TAG, depth)) {
+					parser.consume(XmlPullParser.END_TAG, depth, type.wrapper);
+					// null array in case of: `<values/>`
+					return null;
+				}
+				wrapped = depth + 1;
+			}
+
+			ArrayList<Object> result = visitor == null ? newList(parser) : null;
+			while (!parser.peek(XmlPullParser.END_TAG, -1)) {
+				boolean accepted = values.mapper.accepts(values, parser.parser.getName());
+				if (wrapped == depth && !accepted) {
+					// stop parsing if list tag names change, probably a different list
+					break;
+				}
+				parser.require(XmlPullParser.START_TAG, wrapped, accepted ? null : type.name);
+				parser.collect(1);
+				if (visitor != null) {
+					values.mapper.visit(parser, values, field, visitor);
+					continue;
+				}
+				result.add(values.mapper.parse(parser, values));
+			}
+
+			if (wrapped != depth) {
+				parser.consume(XmlPullParser.END_TAG, depth, type.wrapper);
+			}
+
+			if (visitor != null) {
+				return null;
+			}
+			return observe(parser, result);
+		}
+
+		@Override
+		protected Collection<String> aliases() {
+			return values.mapper.aliases();
+		}
+
+		@Override
+		protected ArrayList<Object> parseJson(XmlParser parser, JsonReader reader, TypeInfo type) throws Exception {
+			switch (reader.peek()) {
+				case NULL:
+					reader.nextNull();
+					return null;
+
+				case BEGIN_ARRAY:
+					ArrayList<Object> result = newList(parser);
+					parser.beginJson(reader, JsonToken.BEGIN_ARRAY);
+					while (reader.hasNext()) {
+						parser.collect(1);
+						result.add(values.mapper.parseJson(parser, reader, values));
+					}
+					parser.endJson(reader, JsonToken.END_ARRAY);
+					return observe(parser, result);
+			}
+
+			// single value instead of an array, like an xml list with one element
+			parser.collect(1);
+			ArrayList<Object> result = new ArrayList<>(1);
+			result.add(values.mapper.parseJson(parser, reader, values));
+			return result;
+		}
+	}
+
+	/**
+	 * Internal mapper for objects: recursive parsing of the subtree
+	 */
+	private static class ObjectParser extends ValueParser<Object> {
+		private final Constructor<?> constructor;
+		private final HashMap<String, TypeInfo> fields = new HashMap<>();
+
+		// values of the missing primitive arguments, null if the object is not bound with the constructor
+		private Object[] defaults;
+
+		public ObjectParser(Class<?> type) throws XmlPullParserException {
+			if (type.isInterface() || Modifier.isAbstract(type.getModifiers()) || type.isPrimitive()) {
+				throw new XmlPullParserException("Type `" + type.getCanonicalName() + "` can not be instantiated, use a mapper or declare the subtypes");
+			}
+			try {
+				this.constructor = getConstructor(type);
+				this.constructor.setAccessible(true);
+			} catch (XmlPullParserException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new XmlPullParserException("No constructor for type: " + type.getCanonicalName(), null, e);
+			}
+		}
+
+		public void cacheFields(Class<?> type) throws XmlPullParserException {
+			if (this.constructor.getParameterTypes().length > 0) {
+				cacheArguments(type);
+				return;
+			}
+			for (Class<?> base = type; base != null; base = base.getSuperclass()) {
+				if (base == Object.class) {
+					break;
+				}
+				for (Field field : base.getDeclaredFields()) {
+					if (Modifier.isStatic(field.getModifiers())) {
+						continue;
+					}
+					if (Modifier.isTransient(field.getModifiers())) {
+						continue;
+					}
+					if (field.isSynthetic()) {
+						continue;
+					}
+					try {
+						field.setAccessible(true);
+						cacheField(type, new TypeInfo(field));
+					} catch (XmlPullParserException e) {
+						throw e;
+					} catch (Exception e) {
+						throw new XmlPullParserException("Field `" + field.getName() + "` is not accessible in: " + type.getCanonicalName(), null, e);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Register the names of the field, two fields can not be bound to the same element or attribute.
+		 */
+		private void cacheField(Class<?> type, TypeInfo info) throws XmlPullParserException {
+			if (!info.wrapper.isEmpty()) {
+				cacheName(type, info.wrapper, info);
+				return;
+			}
+			cacheName(type, info.name, info);
+			for (String alias : info.mapper.aliases()) {
+				cacheName(type, alias, info);
+			}
+		}
+
+		private void cacheName(Class<?> type, String name, TypeInfo info) throws XmlPullParserException {
+			TypeInfo existing = fields.get(name);
+			if (existing == null) {
+				fields.put(name, info);
+				return;
+			}
+			if (existing == info) {
+				return;
+			}
+			if (existing.field != null && info.field != null && existing.field.getName().equals(info.field.getName())) {
+				throw new XmlPullParserException("Field `" + info.field.getName() + "` of `" + info.field.getDeclaringClass().getCanonicalName()
+						+ "` is shadowed by the field of: " + existing.field.getDeclaringClass().getCanonicalName());
+			}
+			throw new XmlPullParserException("Name `" + name + "` is used by multiple fields in `" + type.getCanonicalName() + "`: " + describe(existing) + ", " + describe(info));
+		}
+
+		private static String describe(TypeInfo info) {
+			return info.field != null ? info.field.getName() : info.toString();
+		}
+
+		private void cacheArguments(Class<?> type) throws XmlPullParserException {
+			Class<?>[] types = this.constructor.getParameterTypes();
+			Type[] generics = this.constructor.getGenericParameterTypes();
+			Annotation[][] annotations = this.constructor.getParameterAnnotations();
+			String[] components = getRecordComponents(type);
+			if (components != null && !Arrays.equals(types, getFieldTypes(type, components))) {
+				// annotated constructor of a record, not the canonical one
+				components = null;
+			}
+
+			this.defaults = new Object[types.length];
+			for (int i = 0; i < types.length; i += 1) {
+				if (types[i].isPrimitive()) {
+					this.defaults[i] = Array.get(Array.newInstance(types[i], 1), 0);
+				}
+
+				Name name = getAnnotation(annotations[i], Name.class);
+				Subtypes subtypes = getAnnotation(annotations[i], Subtypes.class);
+				String argument = components != null ? components[i] : name.name();
+				try {
+					cacheField(type, new TypeInfo(getField(type, argument, types[i]), i, argument, types[i], generics[i], name, subtypes));
+				} catch (XmlPullParserException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new XmlPullParserException("Argument `" + argument + "` is not supported in: " + type.getCanonicalName(), null, e);
+				}
+			}
+		}
+
+		@Override
+		protected Object parse(XmlParser parser, TypeInfo type) throws Exception {
+			return parse(parser, type, null, null);
+		}
+
+		@Override
+		protected void visit(XmlParser parser, TypeInfo type, Field field, Visitor visitor) throws Exception {
+			parse(parser, type, field, visitor);
+		}
+
+		/**
+		 * Construct and bind the object, or deliver the values to the visitor if it is not null.
+		 */
+		private Object parse(XmlParser parser, TypeInfo type, Field owner, Visitor visitor) throws Exception {
+			int depth = parser.parser.getDepth();
+			int wrapped = depth;
+
+			if (!type.wrapper.isEmpty()) {
+				parser.consume(XmlPullParser.START_TAG, depth, type.wrapper);
+				if (parser.peek(XmlPullParser.END_TAG, depth)) {
+					parser.consume(XmlPullParser.END_TAG, depth, type.wrapper);
+					// null object in case of: `<object/>`
+					return null;
+				}
+				wrapped = depth + 1;
+			}
+
+			// deserialize attributes first.
+			Object result = null;
+			Object[] arguments = null;
+			if (visitor != null) {
+				visitor.onBegin(owner, this.constructor.getDeclaringClass());
+			} else if (this.defaults != null) {
+				arguments = parser.pushArguments(this.defaults.length);
+			} else {
+				result = this.constructor.newInstance();
+			}
+			parser.require(XmlPullParser.START_TAG, wrapped, type.name);
+			for (int i = 0; i < parser.parser.getAttributeCount(); i += 1) {
+				TypeInfo field = this.fieldOf(parser.parser.getAttributeName(i));
+				if (field == null) {
+					continue;
+				}
+				if (visitor != null) {
+					field.mapper.visitValue(visitor, field.field, parser.parser.getAttributeValue(i));
+					continue;
+				}
+				setValue(result, arguments, field, field.mapper.valueOf(parser.parser.getAttributeValue(i)));
+			}
+
+			parser.consume(XmlPullParser.START_TAG, wrapped, type.name);
+			while (!parser.peek(XmlPullParser.END_TAG, depth)) {
+				TypeInfo field = fieldOf(parser.parser.getName());
+				if (field == null) {
+					parser.skip();
+					continue;
+				}
+
+				if (visitor != null) {
+					field.mapper.visit(parser, field, field.field, visitor);
+					continue;
+				}
+
+				Object value = field.mapper.parse(parser, field);
+				if (value == null) {
+					continue;
+				}
+
+				setValue(result, arguments, field, value);
+			}
+
+			parser.consume(XmlPullParser.END_TAG, wrapped, type.name);
+
+			if (wrapped != depth) {
+				parser.consume(XmlPullParser.END_TAG, depth, type.wrapper);
+			}
+
+			if (visitor != null) {
+				visitor.onEnd(owner, this.constructor.getDeclaringClass());
+			}
+			if (arguments != null) {
+				result = newInstance(parser, arguments);
+			}
+			return result;
+		}
+
+		@Override
+		protected Object parseJson(XmlParser parser, JsonReader reader, TypeInfo type) throws Exception {
+			if (reader.peek() == JsonToken.NULL) {
+				reader.nextNull();
+				return null;
+			}
+
+			Object result = null;
+			Object[] arguments = null;
+			if (this.defaults != null) {
+				arguments = parser.pushArguments(this.defaults.length);
+			} else {
+				result = this.constructor.newInstance();
+			}
+			parser.beginJson(reader, JsonToken.BEGIN_OBJECT);
+			while (reader.hasNext()) {
+				TypeInfo field = fields.get(reader.nextName());
+				if (field == null) {
+					reader.skipValue();
+					continue;
+				}
+
+				Object value = field.mapper.parseJson(parser, reader, field);
+				if (value == null) {
+					continue;
+				}
+
+				setValue(result, arguments, field, value);
+			}
+			parser.endJson(reader, JsonToken.END_OBJECT);
+			if (arguments != null) {
+				result = newInstance(parser, arguments);
+			}
+			return result;
+		}
+
+		private TypeInfo fieldOf(String value) {
+			return fields.get(value == null ? VALUE : value);
+		}
+
+		private static void setValue(Object instance, Object[] arguments, TypeInfo field, Object value) throws IllegalAccessException {
+			if (arguments != null) {
+				arguments[field.index] = field.mergeValue(arguments[field.index], value);
+				return;
+			}
+			field.setValue(instance, value);
+		}
+
+		private Object newInstance(XmlParser parser, Object[] arguments) throws Exception {
+			for (int i = 0; i < arguments.length; i += 1) {
+				if (arguments[i] == null) {
+					arguments[i] = this.defaults[i];
+				}
+			}
+			try {
+				return this.constructor.newInstance(arguments);
+			} finally {
+				parser.popArguments();
+			}
+		}
+
+		/**
+		 * Returns the constructor having all the parameters annotated,
+		 * the canonical constructor of a record, or the default constructor.
+		 */
+		private static Constructor<?> getConstructor(Class<?> type) throws Exception {
+			Constructor<?> result = null;
+			for (Constructor<?> constructor : type.getDeclaredConstructors()) {
+				Annotation[][] annotations = constructor.getParameterAnnotations();
+				if (annotations.length == 0) {
+					continue;
+				}
+				boolean annotated = true;
+				for (Annotation[] parameter : annotations) {
+					if (getAnnotation(parameter, Name.class) == null) {
+						annotated = false;
+						break;
+					}
+				}
+				if (!annotated) {
+					continue;
+				}
+				if (result != null) {
+					throw new XmlPullParserException("Multiple annotated constructors in: " + type.getCanonicalName());
+				}
+				result = constructor;
+			}
+			if (result != null) {
+				return result;
+			}
+
+			String[] components = getRecordComponents(type);
+			if (components != null) {
+				return type.getDeclaredConstructor(getFieldTypes(type, components));
+			}
+			return type.getDeclaredConstructor();
+		}
+
+		private static Class<?>[] getFieldTypes(Class<?> type, String[] names) throws XmlPullParserException {
+			Class<?>[] result = new Class<?>[names.length];
+			for (int i = 0; i < names.length; i += 1) {
+				try {
+					result[i] = type.getDeclaredField(names[i]).getType();
+				} catch (NoSuchFieldException e) {
+					throw new XmlPullParserException("Field `" + names[i] + "` not found in: " + type.getCanonicalName(), null, e);
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * Returns the names of the record components, or null if the type is not a record.
+		 * Records are accessed with reflection, they are not available on all the supported platforms.
+		 */
+		private static String[] getRecordComponents(Class<?> type) throws XmlPullParserException {
+			Class<?> base = type.getSuperclass();
+			if (base == null || !"java.lang.Record".equals(base.getName())) {
+				return null;
+			}
+			try {
+				Object[] components = (Object[]) Class.class.getMethod("getRecordComponents").invoke(type);
+				String[] result = new String[components.length];
+				for (int i = 0; i < components.length; i += 1) {
+					result[i] = (String) components[i].getClass().getMethod("getName").invoke(components[i]);
+				}
+				return result;
+			} catch (Exception e) {
+				throw new XmlPullParserException("Record components are not accessible in: " + type.getCanonicalName(), null, e);
+			}
+		}
+
+		/**
+		 * Returns the field with the same name and type as the constructor argument, or null.
+		 */
+		private static Field getField(Class<?> type, String name, Class<?> argument) {
+			try {
+				Field field = type.getDeclaredField(name);
+				if (Modifier.isStatic(field.getModifiers()) || field.getType() != argument) {
+					return null;
+				}
+				field.setAccessible(true);
+				return field;
+			} catch (Exception e) {
+				return null;
+			}
+		}
+
+		private static <A extends Annotation> A getAnnotation(Annotation[] annotations, Class<A> type) {
+			for (Annotation annotation : annotations) {
+				if (annotation.annotationType() == type) {
+					return type.cast(annotation);
+				}
+			}
+			return null;
+		}
+	}
+
+
+	/**
+	 * Internal mapper for enumerated types, returns null in case there are no matches
+	 */
+	private static class EnumParser extends ValueParser<Enum<?>> {
+		private final Class<?> type;
+		private final boolean ignoreCase;
+		private final boolean strict;
+		private final Enum<?> unknown;
+
+		// open addressing table of the names and aliases, with linear probing
+		private final String[] names;
+		private final Enum<?>[] values;
+		private final int mask;
+
+		public EnumParser(Class<?> type) throws XmlPullParserException {
+			EnumLookup lookup = type.getAnnotation(EnumLookup.class);
+			Enum<?>[] constants = (Enum<?>[]) type.getEnumConstants();
+			this.type = type;
+			this.ignoreCase = lookup != null && lookup.ignoreCase();
+			this.strict = lookup != null && lookup.strict();
+
+			// names and aliases, keep the load factor below 2/3
+			int capacity = 8;
+			while (capacity < 3 * constants.length) {
+				capacity <<= 1;
+			}
+			this.names = new String[capacity];
+			this.values = new Enum<?>[capacity];
+			this.mask = capacity - 1;
+			for (Enum<?> constant : constants) {
+				put(constant.name(), constant);
+				try {
+					Name alias = type.getField(constant.name()).getAnnotation(Name.class);
+					if (alias != null) {
+						put(alias.name(), constant);
+					}
+				} catch (NoSuchFieldException e) {
+					throw new XmlPullParserException("Constant `" + constant.name() + "` is not accessible in: " + type.getCanonicalName(), null, e);
+				}
+			}
+
+			if (lookup == null || lookup.unknown().isEmpty()) {
+				this.unknown = null;
+			} else {
+				this.unknown = get(lookup.unknown());
+				if (this.unknown == null) {
+					throw new XmlPullParserException("Unknown constant `" + lookup.unknown() + "` not found in: " + type.getCanonicalName());
+				}
+			}
+		}
+
+		@Override
+		public Enum<?> valueOf(String name) throws XmlPullParserException {
+			if (name == null) {
+				return null;
+			}
+			Enum<?> result = get(name);
+			if (result == null) {
+				return unknown(name);
+			}
+			return result;
+		}
+
+		@Override
+		protected Enum<?> valueOf(char[] chars, int start, int length) throws XmlPullParserException {
+			int hash = 0;
+			for (int i = start; i < start + length; i += 1) {
+				hash = 31 * hash + fold(chars[i]);
+			}
+			for (int i = mix(hash) & mask; names[i] != null; i = (i + 1) & mask) {
+				String name = names[i];
+				if (name.length() != length) {
+					continue;
+				}
+				int n = 0;
+				while (n < length && fold(name.charAt(n)) == fold(chars[start + n])) {
+					n += 1;
+				}
+				if (n == length) {
+					return values[i];
+				}
+			}
+			return unknown(new String(chars, start, length));
+		}
+
+		private Enum<?> unknown(String name) throws XmlPullParserException {
+			if (strict) {
+				throw new XmlPullParserException("Unknown value `" + name + "` for: " + type.getCanonicalName());
+			}
+			return unknown;
+		}
+
+		private Enum<?> get(String name) {
+			for (int i = indexOf(name); names[i] != null; i = (i + 1) & mask) {
+				if (equals(names[i], name)) {
+					return values[i];
+				}
+			}
+			return null;
+		}
+
+		private void put(String name, Enum<?> value) throws XmlPullParserException {
+			int i = indexOf(name);
+			for (; names[i] != null; i = (i + 1) & mask) {
+				if (!equals(names[i], name)) {
+					continue;
+				}
+				if (values[i] != value) {
+					throw new XmlPullParserException("Name `" + name + "` is used by `" + values[i] + "` and `" + value + "` in: " + type.getCanonicalName());
+				}
+				return;
+			}
+			names[i] = name;
+			values[i] = value;
+		}
+
+		private int indexOf(String name) {
+			int hash = 0;
+			for (int i = 0; i < name.length(); i += 1) {
+				hash = 31 * hash + fold(name.charAt(i));
+			}
+			return mix(hash) & mask;
+		}
+
+		private boolean equals(String a, String b) {
+			return ignoreCase ? a.equalsIgnoreCase(b) : a.equals(b);
+		}
+
+		private char fold(char chr) {
+			return ignoreCase ? Character.toLowerCase(Character.toUpperCase(chr)) : chr;
+		}
+
+		private static int mix(int hash) {
+			return hash ^ (hash >>> 16);
+		}
+	}
+
+	/**
+	 * Internal mapper for custom types, delegates the conversion to the mapper.
+	 * It can be used for duration, datetime or any other custom format conversion.
+	 */
+	private static class CustomParser extends ValueParser<Object> {
+		private final Mapper<?> mapper;
+
+		public CustomParser(Mapper<?> mapper) {
+			this.mapper = mapper;
+		}
+
+		public CustomParser(Name name) throws Exception {
+			this(name.mapper().getDeclaredConstructor().newInstance());
+		}
+
+		@Override
+		public Object valueOf(String value) throws Exception {
+			return mapper.valueOf(value);
+		}
+	}
+
+	/**
+	 * Internal mapper for non-primitive types, returns null if the value is null, delegates the mapping otherwise.
+	 */
+	private static class OptionalParser extends ValueParser<Object> {
+		private final ValueParser<?> mapper;
+
+		public OptionalParser(ValueParser<?> mapper) {
+			this.mapper = mapper;
+		}
+
+		@Override
+		public Object valueOf(String value) throws Exception {
+			return value == null ? null : mapper.valueOf(value);
+		}
+
+		@Override
+		protected Object valueOf(char[] chars, int start, int length) throws Exception {
+			return mapper.valueOf(chars, start, length);
+		}
+
+		@Override
+		protected void visitValue(Visitor visitor, Field field, String value) throws Exception {
+			if (value != null) {
+				mapper.visitValue(visitor, field, value);
+			}
+		}
+	}
+
+	/**
+	 * Internal mapper for java.time values, returns null if the value is null.
+	 * <p>
+	 * ISO-8601 values of the common types are parsed directly from the characters, without a formatter,
+	 * the uncommon forms (like years beyond 9999) and the other types (like LocalTime) are parsed by java.time,
+	 * using the static `parse` and `from` methods of the type.
+	 * The formatters are immutable, so they are shared by the threads.
+	 */
+	private static class TimeParser extends ValueParser<Object> {
+		private final Class<?> type;
+		private final DateTimeFormatter formatter;
+		private final Method parse;
+		private final Method from;
+
+		// the type is handled by the fast path
+		private final boolean fast;
+
+		public TimeParser(Class<?> type, String pattern) throws XmlPullParserException {
+			this.type = type;
+			this.formatter = pattern == null ? null : DateTimeFormatter.ofPattern(pattern, Locale.ROOT);
+			this.fast = type == Instant.class || type == LocalDate.class || type == LocalDateTime.class
+					|| type == OffsetDateTime.class || type == Duration.class;
+			try {
+				this.parse = type.getMethod("parse", CharSequence.class);
+				this.from = pattern == null ? null : type.getMethod("from", TemporalAccessor.class);
+			} catch (NoSuchMethodException e) {
+				throw new XmlPullParserException("Unsupported time type: " + type.getCanonicalName() + (pattern == null ? "" : ", with format: " + pattern), null, e);
+			}
+		}
+
+		@Override
+		public Object valueOf(String value) throws Exception {
+			if (value == null) {
+				return null;
+			}
+			return valueOf(value.toCharArray(), 0, value.length());
+		}
+
+		@Override
+		protected Object valueOf(char[] chars, int start, int length) throws Exception {
+			if (formatter != null) {
+				CharSequence text = CharBuffer.wrap(chars, start, length);
+				if (type == Instant.class) {
+					return formatter.parse(text, Instant::from);
+				}
+				if (type == LocalDate.class) {
+					return formatter.parse(text, LocalDate::from);
+				}
+				if (type == LocalDateTime.class) {
+					return formatter.parse(text, LocalDateTime::from);
+				}
+				if (type == OffsetDateTime.class) {
+					return formatter.parse(text, OffsetDateTime::from);
+				}
+				return invoke(from, formatter.parse(text));
+			}
+
+			if (!fast) {
+				return invoke(parse, CharBuffer.wrap(chars, start, length));
+			}
+
+			Object result = null;
+			try {
+				if (type == Duration.class) {
+					result = parseDuration(chars, start, start + length);
+				} else {
+					result = parseDateTime(chars, start, start + length);
+				}
+			} catch (DateTimeException e) {
+				// invalid values, like month 13, are reported by the parsers of java.time
+			}
+			if (result != null) {
+				return result;
+			}
+
+			// not handled by the fast path, let java.time parse or report the error
+			CharSequence text = CharBuffer.wrap(chars, start, length);
+			if (type == Instant.class) {
+				return Instant.parse(text);
+			}
+			if (type == LocalDate.class) {
+				return LocalDate.parse(text);
+			}
+			if (type == LocalDateTime.class) {
+				return LocalDateTime.parse(text);
+			}
+			if (type == OffsetDateTime.class) {
+				return OffsetDateTime.parse(text);
+			}
+			return Duration.parse(text);
+		}
+
+		private static Object invoke(Method method, Object argument) throws Exception {
+			try {
+				return method.invoke(null, argument);
+			} catch (InvocationTargetException e) {
+				// report the parse errors of java.time
+				if (e.getCause() instanceof Exception) {
+					throw (Exception) e.getCause();
+				}
+				throw e;
+			}
+		}
+
+		/**
+		 * Parse `yyyy-MM-dd`, `yyyy-MM-ddTHH:mm[:ss[.fffffffff]]` with `Z`, `+HH` or `+HH:mm` offset.
+		 * @return null if the text is not in one of the expected forms
+		 */
+		private Object parseDateTime(char[] chars, int pos, int end) {
+			if (end - pos < 10 || chars[pos + 4] != '-' || chars[pos + 7] != '-') {
+				return null;
+			}
+			int year = digits(chars, pos, 4);
+			int month = digits(chars, pos + 5, 2);
+			int day = digits(chars, pos + 8, 2);
+			if ((year | month | day) < 0) {
+				return null;
+			}
+			pos += 10;
+			if (type == LocalDate.class) {
+				return pos == end ? LocalDate.of(year, month, day) : null;
+			}
+
+			// time: `THH:mm[:ss[.fffffffff]]`
+			if (end - pos < 6 || chars[pos] != 'T' || chars[pos + 3] != ':') {
+				return null;
+			}
+			int hour = digits(chars, pos + 1, 2);
+			int minute = digits(chars, pos + 4, 2);
+			int second = 0;
+			int nano = 0;
+			pos += 6;
+			if (end - pos >= 3 && chars[pos] == ':') {
+				second = digits(chars, pos + 1, 2);
+				pos += 3;
+				if (pos < end && chars[pos] == '.') {
+					int digits = 0;
+					for (pos += 1; pos < end && isDigit(chars[pos]); pos += 1) {
+						if (digits == 9) {
+							return null;
+						}
+						nano = 10 * nano + chars[pos] - '0';
+						digits += 1;
+					}
+					if (digits == 0) {
+						return null;
+					}
+					for (; digits < 9; digits += 1) {
+						nano *= 10;
+					}
+				}
+			}
+			if ((hour | minute | second) < 0) {
+				return null;
+			}
+			if (type == LocalDateTime.class) {
+				return pos == end ? LocalDateTime.of(year, month, day, hour, minute, second, nano) : null;
+			}
+
+			// offset: `Z`, `+HH` or `+HH:mm`
+			if (pos == end) {
+				return null;
+			}
+			int offset = 0;
+			if (chars[pos] == 'Z') {
+				pos += 1;
+			} else if (chars[pos] == '+' || chars[pos] == '-') {
+				int sign = chars[pos] == '-' ? -1 : 1;
+				int hours = end - pos >= 3 ? digits(chars, pos + 1, 2) : -1;
+				int minutes = 0;
+				pos += 3;
+				if (pos < end) {
+					minutes = end - pos == 3 && chars[pos] == ':' ? digits(chars, pos + 1, 2) : -1;
+					pos += 3;
+				}
+				if ((hours | minutes) < 0 || minutes > 59 || 60 * hours + minutes > 18 * 60) {
+					// the offsets are limited to +-18:00
+					return null;
+				}
+				offset = sign * (3600 * hours + 60 * minutes);
+			}
+			if (pos != end) {
+				return null;
+			}
+			if (type == Instant.class) {
+				if (hour > 23 || minute > 59 || second > 59) {
+					// let java.time report the error
+					return null;
+				}
+				long epochSecond = LocalDate.of(year, month, day).toEpochDay() * 86400 + 3600 * hour + 60 * minute + second - offset;
+				return Instant.ofEpochSecond(epochSecond, nano);
+			}
+			return OffsetDateTime.of(year, month, day, hour, minute, second, nano, ZoneOffset.ofTotalSeconds(offset));
+		}
+
+		/**
+		 * Parse `[-]PnDTnHnMn.nS`, the parts are optional, but at least one of them must be present,
+		 * in this order and at most once, the `T` must be followed by at least one of the time parts.
+		 * @return null if the text is not in the expected form
+		 */
+		private static Duration parseDuration(char[] chars, int pos, int end) {
+			boolean negative = pos < end && chars[pos] == '-';
+			if (negative) {
+				pos += 1;
+			}
+			if (pos == end || chars[pos] != 'P') {
+				return null;
+			}
+			pos += 1;
+
+			boolean time = false;
+			boolean empty = true;
+			long seconds = 0;
+			int nano = 0;
+			// index of the last part in `DHMS`, the parts must be in order
+			int last = -1;
+			while (pos < end) {
+				if (chars[pos] == 'T' && !time) {
+					time = true;
+					empty = true;
+					pos += 1;
+					continue;
+				}
+
+				int digits = 0;
+				long value = 0;
+				for (; pos < end && isDigit(chars[pos]); pos += 1) {
+					if (digits == 12) {
+						return null;
+					}
+					value = 10 * value + chars[pos] - '0';
+					digits += 1;
+				}
+				if (digits == 0 || pos == end) {
+					return null;
+				}
+
+				char unit = chars[pos];
+				if (unit == '.' && time) {
+					digits = 0;
+					for (pos += 1; pos < end && isDigit(chars[pos]); pos += 1) {
+						if (digits == 9) {
+							return null;
+						}
+						nano = 10 * nano + chars[pos] - '0';
+						digits += 1;
+					}
+					if (digits == 0 || pos == end || chars[pos] != 'S') {
+						return null;
+					}
+					for (; digits < 9; digits += 1) {
+						nano *= 10;
+					}
+					unit = 'S';
+				}
+
+				int part = "DHMS".indexOf(unit);
+				if (part <= last || (part == 0) == time) {
+					return null;
+				}
+				if (unit == 'D') {
+					seconds += 86400 * value;
+				} else if (unit == 'H') {
+					seconds += 3600 * value;
+				} else if (unit == 'M') {
+					seconds += 60 * value;
+				} else {
+					seconds += value;
+				}
+				last = part;
+				empty = false;
+				pos += 1;
+			}
+			if (empty) {
+				return null;
+			}
+
+			Duration result = Duration.ofSeconds(seconds, nano);
+			return negative ? result.negated() : result;
+		}
+
+		private static boolean isDigit(char chr) {
+			return chr >= '0' && chr <= '9';
+		}
+
+		/**
+		 * @return the value of the decimal digits, or -1 if there is a non digit character
+		 */
+		private static int digits(char[] chars, int pos, int count) {
+			int result = 0;
+			for (int i = pos; i < pos + count; i += 1) {
+				if (!isDigit(chars[i])) {
+					return -1;
+				}
+				result = 10 * result + chars[i] - '0';
+			}
+			return result;
+		}
+	}
+
+
+	/**
+	 * Internal mapper for maps, the entries are inserted directly into a pre-sized map.
+	 */
+	private static class MapParser extends ValueParser<Object> {
+		private final Class<?> type;
+		private final TypeInfo values;
+		private final ValueParser<?> keys;
+		private final String key;
+
+		public MapParser(String fieldName, Class<?> type, Type generic, Name name, ValueParser<?> mapper) throws XmlPullParserException {
+			this.type = type;
+			this.key = name == null ? "" : name.key();
+			Class<?>[] types = TypeInfo.getTypeArguments(fieldName, generic);
+			Class<?> valueType = types[types.length - 1];
+			if (this.type == LongMap.class) {
+				this.keys = null;
+			} else {
+				this.keys = TypeInfo.typeCache.getMapper(types[0]);
+			}
+
+			if (this.key.isEmpty()) {
+				// the tag names are the keys, any element inside the wrapper is an entry
+				if (name == null || name.wrapper().isEmpty()) {
+					throw new XmlPullParserException("Map field `" + fieldName + "` must specify a wrapper or a key");
+				}
+				this.values = new TypeInfo(valueType, null, mapper);
+			} else {
+				this.values = new TypeInfo(valueType, name.name(), mapper);
+			}
+		}
+
+		@Override
+		protected Object parse(XmlParser parser, TypeInfo type) throws Exception {
+			return parse(parser, type, null, null);
+		}
+
+		@Override
+		protected void visit(XmlParser parser, TypeInfo type, Field field, Visitor visitor) throws Exception {
+			parse(parser, type, field, visitor);
+		}
+
+		private Object parse(XmlParser parser, TypeInfo type, Field field, Visitor visitor) throws Exception {
+			int depth = parser.parser.getDepth();
+			int wrapped = depth;
+
+			if (!type.wrapper.isEmpty()) {
+				parser.consume(XmlPullParser.START_TAG, depth, type.wrapper);
+				if (parser.peek(XmlPullParser.END_TAG, depth)) {
+					parser.consume(XmlPullParser.END_TAG, depth, type.wrapper);
+					// null map in case of: `<values/>`
+					return null;
+				}
+				wrapped = depth + 1;
+			}
+
+			Object result = visitor == null ? newMap(parser) : null;
+			while (!parser.peek(XmlPullParser.END_TAG, -1)) {
+				if (wrapped == depth && !type.name.equals(parser.parser.getName())) {
+					// stop parsing if the tag names change
+					break;
+				}
+				parser.require(XmlPullParser.START_TAG, wrapped, values.name);
+				parser.collect(1);
+				if (visitor != null) {
+					values.mapper.visit(parser, values, field, visitor);
+					continue;
+				}
+
+				String key = null;
+				if (this.key.isEmpty()) {
+					key = parser.parser.getName();
+				} else if (this.key.startsWith("@")) {
+					key = parser.parser.getAttributeValue(null, this.key.substring(1));
+					if (key == null) {
+						throw new XmlPullParserException("missing key attribute: " + this.key + " at: " + parser.parser.getPositionDescription());
+					}
+				}
+
+				Object value = values.mapper.parse(parser, values);
+				if (key == null) {
+					// the key is the value of a field bound from a child element
+					put(result, keyOf(value), value);
+				} else if (result instanceof LongMap) {
+					put(result, Long.parseLong(key), value);
+				} else {
+					put(result, keys.valueOf(key), value);
+				}
+			}
+
+			if (wrapped != depth) {
+				parser.consume(XmlPullParser.END_TAG, depth, type.wrapper);
+			}
+
+			if (visitor != null) {
+				return null;
+			}
+			return observe(parser, result);
+		}
+
+		@Override
+		protected Object parseJson(XmlParser parser, JsonReader reader, TypeInfo type) throws Exception {
+			if (reader.peek() == JsonToken.NULL) {
+				reader.nextNull();
+				return null;
+			}
+
+			Object result = newMap(parser);
+			parser.beginJson(reader, JsonToken.BEGIN_OBJECT);
+			while (reader.hasNext()) {
+				String key = reader.nextName();
+				parser.collect(1);
+				Object value = values.mapper.parseJson(parser, reader, values);
+				if (result instanceof LongMap) {
+					put(result, Long.parseLong(key), value);
+				} else {
+					put(result, keys.valueOf(key), value);
+				}
+			}
+			parser.endJson(reader, JsonToken.END_OBJECT);
+			return observe(parser, result);
+		}
+
+		@SuppressWarnings({"rawtypes", "unchecked"})
+		public Object merge(Object oldValue, Object values) {
+			if (oldValue == null || values == null) {
+				return values;
+			}
+			if (oldValue instanceof LongMap) {
+				((LongMap) oldValue).putAll((LongMap) values);
+			} else {
+				((Map) oldValue).putAll((Map) values);
+			}
+			return oldValue;
 		}
 
-		@Override
-		protected ArrayList<Object> parse(XmlParser parser, TypeInfo type) throws Exception {
-			int depth = parser.parser.getDepth();
-			int wrapped = depth;
+		private Object keyOf(Object value) throws Exception {
+			if (value == null || !(values.mapper instanceof ObjectParser)) {
+				throw new XmlPullParserException("key `" + key + "` must be a field of: " + values);
+			}
+			TypeInfo field = ((ObjectParser) values.mapper).fields.get(key);
+			if (field == null || field.field == null) {
+				throw new XmlPullParserException("key `" + key + "` must be a field of: " + values);
+			}
+			return field.field.get(value);
+		}
 
-			if (!type.wrapper.isEmpty()) {
-				parser.consume(XmlPullParser.START_TAG, depth, type.wrapper);
-				if (parser.peek(XmlPullParser.END_TAG, depth)) {
-					parser.consume(XmlPullParser.END_TAG, depth, type.wrapper);
-					// null array in case of: `<values/>`
-					return null;
-				}
-				wrapped = depth + 1;
+		@SuppressWarnings({"rawtypes", "unchecked"})
+		private static void put(Object map, Object key, Object value) {
+			if (map instanceof LongMap) {
+				((LongMap) map).put(((Number) key).longValue(), value);
+			} else {
+				((Map) map).put(key, value);
 			}
+		}
 
-			ArrayList<Object> result = new ArrayList<>();
-			while (!parser.peek(XmlPullParser.END_TAG, -1)) {
-				if (wrapped == depth && !type.name.equals(parser.parser.getName())) {
-					// stop parsing if list tag names change, probably a different list
-					break;
+		private Object newMap(XmlParser parser) throws Exception {
+			int size = parser.expectedSize(this);
+			if (size < 0) {
+				// no history, use the default capacity
+				if (type == LongMap.class) {
+					return new LongMap<>();
+				}
+				if (type == HashMap.class) {
+					return new HashMap<>();
+				}
+				if (type == Map.class || type == LinkedHashMap.class) {
+					return new LinkedHashMap<>();
 				}
-				parser.require(XmlPullParser.START_TAG, wrapped, type.name);
-				result.add(values.mapper.parse(parser, values));
 			}
 
-			if (wrapped != depth) {
-				parser.consume(XmlPullParser.END_TAG, depth, type.wrapper);
+			// the hash maps are allocated with the capacity for the expected size with the default load factor
+			int capacity = size + size / 3 + 1;
+			if (type == LongMap.class) {
+				return new LongMap<>(size);
+			}
+			if (type == HashMap.class) {
+				return new HashMap<>(capacity);
 			}
+			if (type == Map.class || type == LinkedHashMap.class) {
+				return new LinkedHashMap<>(capacity);
+			}
+			if (type.isAssignableFrom(TreeMap.class)) {
+				return new TreeMap<>();
+			}
+			return type.getDeclaredConstructor().newInstance();
+		}
 
+		private Object observe(XmlParser parser, Object result) {
+			parser.observeSize(this, result instanceof LongMap ? ((LongMap<?>) result).size() : ((Map<?, ?>) result).size());
 			return result;
 		}
 	}
 
 	/**
-	 * Internal mapper for objects: recursive parsing of the subtree
+	 * Internal mapper for polymorphic types, selects the parser of the subtype with a single lookup.
 	 */
-	private static class ObjectParser extends ValueParser<Object> {
-		private final Constructor<?> constructor;
-		private final HashMap<String, TypeInfo> fields = new HashMap<>();
+	private static class SubtypeParser extends ValueParser<Object> {
+		private final HashMap<String, TypeInfo> subtypes = new HashMap<>();
+		private final String attribute;
+		private TypeInfo fallback = null;
 
-		public ObjectParser(Class<?> type) {
-			try {
-				this.constructor = type.getDeclaredConstructor();
-				this.constructor.setAccessible(true);
-			} catch (Exception e) {
-				throw new RuntimeException("No constructor for type: " + type, e);
-			}
+		public SubtypeParser(Subtypes subtypes) {
+			this.attribute = subtypes.attribute();
 		}
 
-		public void cacheFields(Class<?> type) throws XmlPullParserException {
-			for (Class<?> base = type; base != null; base = base.getSuperclass()) {
-				if (base == Object.class) {
-					break;
+		public void cacheSubtypes(Class<?> type, Subtypes subtypes) throws XmlPullParserException {
+			for (Subtype subtype : subtypes.value()) {
+				if (!type.isAssignableFrom(subtype.type())) {
+					throw new XmlPullParserException("Subtype `" + subtype.type().getCanonicalName() + "` is not assignable to: " + type.getCanonicalName());
 				}
-				for (Field field : base.getDeclaredFields()) {
-					if (Modifier.isStatic(field.getModifiers())) {
-						continue;
-					}
-					if (Modifier.isTransient(field.getModifiers())) {
-						continue;
-					}
-					if (field.isSynthetic()) {
-						continue;
-					}
-					try {
-						field.setAccessible(true);
-						TypeInfo info = new TypeInfo(field);
-						if (!info.wrapper.isEmpty()) {
-							fields.put(info.wrapper, info);
-						} else {
-							fields.put(info.name, info);
-						}
-					} catch (XmlPullParserException e) {
-						throw e;
-					} catch (Exception e) {
-						throw new XmlPullParserException("Field `" + field.getName() + "` is not accessible in: " + type.getCanonicalName(), null, e);
-					}
+				// the tag name is checked by the dispatch, not by the object parser
+				TypeInfo info = new TypeInfo(subtype.type(), null, TypeInfo.typeCache.getObjectParser(subtype.type()));
+				if (this.subtypes.put(subtype.name(), info) != null) {
+					throw new XmlPullParserException("Subtype name `" + subtype.name() + "` is used multiple times in: " + type.getCanonicalName());
 				}
 			}
+			if (!type.isInterface() && !Modifier.isAbstract(type.getModifiers())) {
+				this.fallback = new TypeInfo(type, null, TypeInfo.typeCache.getObjectParser(type));
+			}
+		}
+
+		@Override
+		protected Collection<String> aliases() {
+			if (!attribute.isEmpty()) {
+				return Collections.emptyList();
+			}
+			return subtypes.keySet();
+		}
+
+		@Override
+		protected boolean accepts(TypeInfo type, String tag) {
+			if (attribute.isEmpty() && subtypes.containsKey(tag)) {
+				return true;
+			}
+			return type.name.equals(tag);
 		}
 
 		@Override
 		protected Object parse(XmlParser parser, TypeInfo type) throws Exception {
+			return parse(parser, type, null, null);
+		}
+
+		@Override
+		protected void visit(XmlParser parser, TypeInfo type, Field field, Visitor visitor) throws Exception {
+			parse(parser, type, field, visitor);
+		}
+
+		private Object parse(XmlParser parser, TypeInfo type, Field field, Visitor visitor) throws Exception {
 			int depth = parser.parser.getDepth();
 			int wrapped = depth;
 
@@ -284,103 +2103,117 @@ public class XmlParser {
 				wrapped = depth + 1;
 			}
 
-			// deserialize attributes first.
-			Object result = this.constructor.newInstance();
-			parser.require(XmlPullParser.START_TAG, wrapped, type.name);
-			for (int i = 0; i < parser.parser.getAttributeCount(); i += 1) {
-				TypeInfo field = this.fieldOf(parser.parser.getAttributeName(i));
-				if (field == null) {
-					continue;
-				}
-				field.setValue(result, field.mapper.valueOf(parser.parser.getAttributeValue(i)));
+			parser.require(XmlPullParser.START_TAG, wrapped, null);
+			String key = parser.parser.getName();
+			if (!attribute.isEmpty()) {
+				key = parser.parser.getAttributeValue(null, attribute);
 			}
 
-			parser.consume(XmlPullParser.START_TAG, wrapped, type.name);
-			while (!parser.peek(XmlPullParser.END_TAG, depth)) {
-				TypeInfo field = fieldOf(parser.parser.getName());
-				if (field == null) {
-					parser.skip();
-					continue;
-				}
-
-				Object value = field.mapper.parse(parser, field);
-				if (value == null) {
-					continue;
-				}
-
-				field.setValue(result, value);
+			TypeInfo subtype = key == null ? null : subtypes.get(key);
+			if (subtype == null) {
+				subtype = fallback;
 			}
 
-			parser.consume(XmlPullParser.END_TAG, wrapped, type.name);
+			Object result = null;
+			if (subtype == null) {
+				parser.skip();
+			} else if (visitor != null) {
+				subtype.mapper.visit(parser, subtype, field, visitor);
+			} else {
+				result = subtype.mapper.parse(parser, subtype);
+			}
 
 			if (wrapped != depth) {
 				parser.consume(XmlPullParser.END_TAG, depth, type.wrapper);
 			}
-
 			return result;
 		}
 
-		private TypeInfo fieldOf(String value) {
-			return fields.get(value == null ? VALUE : value);
+		@Override
+		protected Object parseJson(XmlParser parser, JsonReader reader, TypeInfo type) throws Exception {
+			throw new XmlPullParserException("Polymorphic values are not supported in json: " + type);
 		}
 	}
 
-
 	/**
-	 * Internal mapper for enumerated types, returns null in case there are no matches
+	 * Internal mapper for lazy fields, records the markup of the element to be deserialized on demand.
+	 * <p>
+	 * The wrapper is not recorded, for arrays and collections the items are recorded,
+	 * the items of repeated unwrapped elements are merged into the same lazy value.
 	 */
-	private static class EnumParser extends ValueParser<Enum<?>> {
-		private final Enum<?>[] values;
+	private static class LazyParser extends ValueParser<Lazy<?>> {
+		private final Class<?> type;
 
-		public EnumParser(Class<?> type) {
-			this.values = (Enum<?>[]) type.getEnumConstants();
+		public LazyParser(Class<?> type) {
+			this.type = type;
 		}
 
 		@Override
-		public Enum<?> valueOf(String name) {
-			for (Enum<?> value : values) {
-				if (name.equals(value.name())) {
-					return value;
+		@SuppressWarnings({"rawtypes", "unchecked"})
+		protected Lazy<?> parse(XmlParser parser, TypeInfo type) throws Exception {
+			int depth = parser.parser.getDepth();
+			int wrapped = depth;
+
+			if (!type.wrapper.isEmpty()) {
+				parser.consume(XmlPullParser.START_TAG, depth, type.wrapper);
+				if (parser.peek(XmlPullParser.END_TAG, depth)) {
+					parser.consume(XmlPullParser.END_TAG, depth, type.wrapper);
+					// null value in case of: `<values/>`
+					return null;
 				}
+				wrapped = depth + 1;
 			}
-			return null;
-		}
-	}
-
-	/**
-	 * Internal mapper for custom types, delegates the conversion to the mapper.
-	 * It can be used for duration, datetime or any other custom format conversion.
-	 */
-	private static class CustomParser extends ValueParser<Object> {
-		private final Mapper<?> mapper;
 
-		public CustomParser(Mapper<?> mapper) {
-			this.mapper = mapper;
-		}
+			// the recorded element is the root of the deferred document, or an item inside the synthetic root
+			boolean collection = Lazy.isCollection(this.type);
+			int maxDepth = parser.maxDepth - (wrapped - parser.rootDepth) + (collection ? 1 : 0);
+			StringBuilder source = new StringBuilder();
+			if (collection) {
+				do {
+					parser.require(XmlPullParser.START_TAG, wrapped, wrapped == depth ? type.name : null);
+					parser.skip(source);
+				} while (wrapped != depth && !parser.peek(XmlPullParser.END_TAG, depth));
+			} else {
+				parser.require(XmlPullParser.START_TAG, wrapped, type.name);
+				parser.skip(source);
+			}
 
-		public CustomParser(Name name) throws Exception {
-			this(name.mapper().getDeclaredConstructor().newInstance());
+			if (wrapped != depth) {
+				parser.consume(XmlPullParser.END_TAG, depth, type.wrapper);
+			}
+			return new Lazy(this.type, source.toString(), parser, maxDepth);
 		}
 
 		@Override
-		public Object valueOf(String value) throws Exception {
-			return mapper.valueOf(value);
+		protected void visit(XmlParser parser, TypeInfo type, Field field, Visitor visitor) throws Exception {
+			parser.skip();
 		}
-	}
-
-	/**
-	 * Internal mapper for non-primitive types, returns null if the value is null, delegates the mapping otherwise.
-	 */
-	private static class OptionalParser extends ValueParser<Object> {
-		private final Mapper<?> mapper;
 
-		public OptionalParser(Mapper<?> mapper) {
-			this.mapper = mapper;
+		@Override
+		@SuppressWarnings({"rawtypes", "unchecked"})
+		protected Lazy<?> parseJson(XmlParser parser, JsonReader reader, TypeInfo type) throws Exception {
+			// the markup of json values can not be recorded, bind the value eagerly
+			TypeInfo value = new TypeInfo(this.type, type.name, null);
+			Object result = value.mapper.parseJson(parser, reader, value);
+			if (value.collection != null && result != null) {
+				result = value.mergeArray(null, (ArrayList<?>) result);
+			}
+			Lazy lazy = new Lazy(this.type, null, parser, parser.maxDepth);
+			lazy.value = result;
+			return lazy;
 		}
 
-		@Override
-		public Object valueOf(String value) throws Exception {
-			return value == null ? null : mapper.valueOf(value);
+		/**
+		 * Merge the items of the repeated unwrapped elements, other values are replaced.
+		 */
+		@SuppressWarnings({"rawtypes", "unchecked"})
+		public Object merge(Object oldValue, Object value) {
+			Lazy<?> old = (Lazy<?>) oldValue;
+			Lazy<?> lazy = (Lazy<?>) value;
+			if (old == null || lazy == null || old.source == null || lazy.source == null || !Lazy.isCollection(this.type)) {
+				return value;
+			}
+			return new Lazy(this.type, old.source + lazy.source, lazy);
 		}
 	}
 
@@ -390,7 +2223,6 @@ public class XmlParser {
 	 */
 	private static class TypeInfo {
 		private static final TypeCache typeCache = new TypeCache();
-		private static final Object[] EMPTY_OBJECT_ARRAY = {};
 
 		protected final String wrapper;
 		protected final String name;
@@ -399,40 +2231,68 @@ public class XmlParser {
 		private final Class<?> type;
 		private final Field field;
 
+		// index of the constructor argument, or -1 for fields
+		private final int index;
+
 		protected final ValueParser<?> mapper;
 
 		public TypeInfo(Field field) throws Exception {
-			this.field = field;
-			this.type = getComponentType(field);
+			this(field, -1, field.getName(), field.getType(), field.getGenericType(), field.getAnnotation(Name.class), field.getAnnotation(Subtypes.class));
+		}
 
-			// collection or an object
-			if (this.type != field.getType()) {
-				this.collection = field.getType();
-			} else {
+		/**
+		 * Type of a field or of a constructor argument, the field can be null for arguments.
+		 */
+		public TypeInfo(Field field, int index, String fieldName, Class<?> fieldType, Type generic, Name name, Subtypes subtypes) throws Exception {
+			this.field = field;
+			this.index = index;
+			if (fieldType == Lazy.class) {
 				this.collection = null;
+				this.type = getTypeArguments(fieldName, generic)[0];
+				this.wrapper = name == null ? "" : name.wrapper();
+				this.name = name == null ? fieldName : name.name();
+				this.mapper = new LazyParser(this.type);
+				return;
 			}
 
-			Name name = field.getAnnotation(Name.class);
-			if (name == null) {
-				this.wrapper = "";
-				this.name = field.getName();
-				if (this.collection != null) {
-					this.mapper = new ArrayParser(this.type, this.name, null);
-				} else {
-					this.mapper = typeCache.getMapper(this.type);
+			if (Map.class.isAssignableFrom(fieldType) || fieldType == LongMap.class) {
+				Class<?>[] types = getTypeArguments(fieldName, generic);
+				this.collection = null;
+				this.type = types[types.length - 1];
+				this.wrapper = name == null ? "" : name.wrapper();
+				this.name = name == null ? fieldName : name.name();
+				ValueParser<?> mapper = null;
+				if (name != null && name.mapper() != Mapper.class) {
+					mapper = new CustomParser(name);
 				}
+				this.mapper = new MapParser(fieldName, fieldType, generic, name, mapper);
 				return;
 			}
 
-			this.wrapper = name.wrapper();
-			this.name = name.name();
+			this.type = getComponentType(fieldName, fieldType, generic);
+
+			// collection or an object
+			if (this.type != fieldType) {
+				this.collection = fieldType;
+			} else {
+				this.collection = null;
+			}
+
+			this.wrapper = name == null ? "" : name.wrapper();
+			this.name = name == null ? fieldName : name.name();
 
 			ValueParser<?> mapper;
-			if (name.mapper() == Mapper.class) {
+			if (subtypes != null) {
+				SubtypeParser subtypeParser = new SubtypeParser(subtypes);
+				subtypeParser.cacheSubtypes(this.type, subtypes);
+				mapper = subtypeParser;
+			} else if (name != null && name.mapper() != Mapper.class) {
+				mapper = new CustomParser(name);
+			} else if (name != null && !name.format().isEmpty()) {
+				mapper = new TimeParser(this.type, name.format());
+			} else {
 				// no mapper specified, do not use custom mapper
 				mapper = typeCache.getMapper(this.type);
-			} else {
-				mapper = new CustomParser(name);
 			}
 
 			if (this.collection != null) {
@@ -446,6 +2306,7 @@ public class XmlParser {
 			this.wrapper = "";
 			this.name = name;
 			this.field = null;
+			this.index = -1;
 			if (type.isArray() || Collection.class.isAssignableFrom(type)) {
 				this.collection = type;
 				this.type = type.getComponentType();
@@ -472,24 +2333,32 @@ public class XmlParser {
 				return values;
 			}
 
-			Object[] oldValues = EMPTY_OBJECT_ARRAY;
+			int oldLength = 0;
 			if (oldValue != null && this.wrapper.isEmpty()) {
-				oldValues = (Object[]) oldValue;
+				oldLength = Array.getLength(oldValue);
 			}
-			Object result = Array.newInstance(type, oldValues.length + values.size());
-			for (int i = 0; i < oldValues.length; i++) {
-				Array.set(result, i, oldValues[i]);
+
+			// allocate the result once, copy the old values (works also for primitive arrays)
+			Object result = Array.newInstance(type, oldLength + values.size());
+			if (oldLength > 0) {
+				System.arraycopy(oldValue, 0, result, 0, oldLength);
 			}
-			for (int i = 0; i < values.size(); i++) {
-				Array.set(result, i + oldValues.length, values.get(i));
+			if (type.isPrimitive()) {
+				for (int i = 0; i < values.size(); i++) {
+					Array.set(result, i + oldLength, values.get(i));
+				}
+			} else {
+				Object[] array = (Object[]) result;
+				for (int i = 0; i < values.size(); i++) {
+					array[i + oldLength] = values.get(i);
+				}
 			}
 			return result;
 		}
 
 		public void setValue(Object instance, Object value) throws IllegalAccessException {
-			if (this.collection != null) {
-				Object oldValue = this.field.get(instance);
-				value = mergeArray(oldValue, (ArrayList<?>) value);
+			if (this.collection != null || this.mapper instanceof MapParser || this.mapper instanceof LazyParser) {
+				value = mergeValue(this.field.get(instance), value);
 			}
 
 			/* DEBUG
@@ -499,20 +2368,53 @@ public class XmlParser {
 			this.field.set(instance, value);
 		}
 
-		private static Class<?> getComponentType(Field field) {
-			Class<?> type = field.getType();
+		/**
+		 * Merge the values of repeated collections and maps, other values are replaced.
+		 */
+		public Object mergeValue(Object oldValue, Object value) {
+			if (this.collection != null) {
+				return mergeArray(oldValue, (ArrayList<?>) value);
+			}
+			if (this.mapper instanceof MapParser && this.wrapper.isEmpty()) {
+				return ((MapParser) this.mapper).merge(oldValue, value);
+			}
+			if (this.mapper instanceof LazyParser && this.wrapper.isEmpty()) {
+				return ((LazyParser) this.mapper).merge(oldValue, value);
+			}
+			return value;
+		}
+
+		private static Class<?> getComponentType(String fieldName, Class<?> type, Type generic) throws XmlPullParserException {
 			if (type.isArray()) {
 				return type.getComponentType();
 			}
 
 			if (Collection.class.isAssignableFrom(type)) {
-				ParameterizedType generic = (ParameterizedType) field.getGenericType();
-				return (Class<?>) generic.getActualTypeArguments()[0];
+				return getTypeArguments(fieldName, generic)[0];
 			}
 
 			return type;
 		}
 
+		/**
+		 * Returns the type arguments of a generic field, like the element type of a list.
+		 * Raw types, wildcards, type variables and nested generic types are not supported.
+		 */
+		private static Class<?>[] getTypeArguments(String fieldName, Type generic) throws XmlPullParserException {
+			if (generic instanceof ParameterizedType) {
+				Type[] types = ((ParameterizedType) generic).getActualTypeArguments();
+				Class<?>[] result = new Class<?>[types.length];
+				for (int i = 0; i < types.length; i += 1) {
+					if (!(types[i] instanceof Class)) {
+						throw new XmlPullParserException("Field `" + fieldName + "` must specify class type arguments, found: " + generic);
+					}
+					result[i] = (Class<?>) types[i];
+				}
+				return result;
+			}
+			throw new XmlPullParserException("Field `" + fieldName + "` must specify the type arguments of: " + generic);
+		}
+
 		@Override
 		public String toString() {
 			return "FieldInfo { '" +
@@ -529,6 +2431,11 @@ public class XmlParser {
 	private static class TypeCache {
 
 		private final HashMap<Type, ValueParser<?>> cache = new HashMap<>();
+		private final HashMap<Type, ObjectParser> objects = new HashMap<>();
+
+		// types cached by the current registration, removed if the registration fails
+		private final ArrayList<Type> pending = new ArrayList<>();
+		private int registering = 0;
 
 		public TypeCache() {
 			cache.put(Boolean.class, new OptionalParser(boolMapper));
@@ -554,7 +2461,7 @@ public class XmlParser {
 
 		public ValueParser<?> getMapper(Class<?> type) throws XmlPullParserException {
 			if (type.isArray() || Collection.class.isAssignableFrom(type)) {
-				throw new RuntimeException("Arrays not supported here yet");
+				throw new XmlPullParserException("Nested arrays and collections are not supported: " + type.getCanonicalName());
 			}
 
 			synchronized (this) {
@@ -563,17 +2470,100 @@ public class XmlParser {
 					return cached;
 				}
 
-				if (Enum.class.isAssignableFrom(type)) {
-					ValueParser<?> mapper = new EnumParser(type);
-					cache.put(type, mapper);
-					return mapper;
+				registering += 1;
+				try {
+					return newMapper(type);
+				} catch (XmlPullParserException | RuntimeException e) {
+					rollback();
+					throw e;
+				} finally {
+					registering -= 1;
+					if (registering == 0) {
+						pending.clear();
+					}
 				}
+			}
+		}
 
-				ObjectParser mapper = new ObjectParser(type);
-				cache.put(type, mapper);
-				mapper.cacheFields(type);
+		/**
+		 * Returns the object parser of the type, ignoring the subtypes annotation of the class.
+		 */
+		public ObjectParser getObjectParser(Class<?> type) throws XmlPullParserException {
+			synchronized (this) {
+				ObjectParser cached = objects.get(type);
+				if (cached != null) {
+					return cached;
+				}
+
+				registering += 1;
+				try {
+					return newObjectParser(type);
+				} catch (XmlPullParserException | RuntimeException e) {
+					rollback();
+					throw e;
+				} finally {
+					registering -= 1;
+					if (registering == 0) {
+						pending.clear();
+					}
+				}
+			}
+		}
+
+		private ValueParser<?> newMapper(Class<?> type) throws XmlPullParserException {
+			if (Enum.class.isAssignableFrom(type)) {
+				ValueParser<?> mapper = new EnumParser(type);
+				put(type, mapper);
+				return mapper;
+			}
+
+			// compare the names, the java.time classes might not be available on the device
+			if (type.getName().startsWith("java.time.")) {
+				ValueParser<?> mapper = new TimeParser(type, null);
+				put(type, mapper);
 				return mapper;
 			}
+
+			Subtypes subtypes = type.getAnnotation(Subtypes.class);
+			if (subtypes != null) {
+				SubtypeParser mapper = new SubtypeParser(subtypes);
+				put(type, mapper);
+				mapper.cacheSubtypes(type, subtypes);
+				return mapper;
+			}
+
+			return getObjectParser(type);
+		}
+
+		private ObjectParser newObjectParser(Class<?> type) throws XmlPullParserException {
+			ObjectParser mapper = new ObjectParser(type);
+			objects.put(type, mapper);
+			if (type.getAnnotation(Subtypes.class) == null) {
+				cache.put(type, mapper);
+			}
+			pending.add(type);
+			mapper.cacheFields(type);
+			return mapper;
+		}
+
+		private void put(Class<?> type, ValueParser<?> mapper) {
+			cache.put(type, mapper);
+			pending.add(type);
+		}
+
+		/**
+		 * Remove the partially initialized parsers, including the ones of the referenced types,
+		 * which might reference the failed type. Only the outermost registration rolls back.
+		 */
+		private void rollback() {
+			if (registering > 1) {
+				return;
+			}
+			for (Type type : pending) {
+				cache.remove(type);
+				objects.remove(type);
+			}
+			pending.clear();
 		}
 
 		private static char parseChar(String value) {
@@ -591,42 +2581,77 @@ public class XmlParser {
 			public Boolean valueOf(String value) {
 				return Boolean.parseBoolean(value);
 			}
+
+			@Override
+			protected void visitValue(Visitor visitor, Field field, String value) throws Exception {
+				visitor.onValue(field, Boolean.parseBoolean(value));
+			}
 		};
 		private static final ValueParser<Byte> byteMapper = new ValueParser<>() {
 			@Override
 			public Byte valueOf(String value) {
 				return Byte.parseByte(value);
 			}
+
+			@Override
+			protected void visitValue(Visitor visitor, Field field, String value) throws Exception {
+				visitor.onValue(field, Byte.parseByte(value));
+			}
 		};
 		private static final ValueParser<Short> shortMapper = new ValueParser<>() {
 			@Override
 			public Short valueOf(String value) {
 				return Short.parseShort(value);
 			}
+
+			@Override
+			protected void visitValue(Visitor visitor, Field field, String value) throws Exception {
+				visitor.onValue(field, Short.parseShort(value));
+			}
 		};
 		private static final ValueParser<Integer> integerMapper = new ValueParser<>() {
 			@Override
 			public Integer valueOf(String value) {
 				return Integer.parseInt(value);
 			}
+
+			@Override
+			protected void visitValue(Visitor visitor, Field field, String value) throws Exception {
+				visitor.onValue(field, Integer.parseInt(value));
+			}
 		};
 		private static final ValueParser<Long> longMapper = new ValueParser<>() {
 			@Override
 			public Long valueOf(String value) {
 				return Long.parseLong(value);
 			}
+
+			@Override
+			protected void visitValue(Visitor visitor, Field field, String value) throws Exception {
+				visitor.onValue(field, Long.parseLong(value));
+			}
 		};
 		private static final ValueParser<Float> floatMapper = new ValueParser<>() {
 			@Override
 			public Float valueOf(String value) {
 				return Float.parseFloat(value);
 			}
+
+			@Override
+			protected void visitValue(Visitor visitor, Field field, String value) throws Exception {
+				visitor.onValue(field, Float.parseFloat(value));
+			}
 		};
 		private static final ValueParser<Double> doubleMapper = new ValueParser<>() {
 			@Override
 			public Double valueOf(String value) {
 				return Double.parseDouble(value);
 			}
+
+			@Override
+			protected void visitValue(Visitor visitor, Field field, String value) throws Exception {
+				visitor.onValue(field, Double.parseDouble(value));
+			}
 		};
 		private static final ValueParser<Character> charMapper = new ValueParser<>() {
 			@Override
@@ -0,0 +1,249 @@
+package kmz.utils;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Compiled path queries, to extract a few values from large documents without binding them.
+ * <p>
+ * Supported paths are absolute, made of element names or `*` matching any element,
+ * optionally ending with an attribute `@name` or `text()`, like:
+ * <ul>
+ * <li>`/company/employees/employee/@id`: the id attribute of each employee</li>
+ * <li>`/company/employees/employee/name`: the text of each employee name</li>
+ * <li>`/company/employees/employee/name/text()`: same as the previous one</li>
+ * </ul>
+ * The text of an element is the concatenated text of all its descendants, like the XPath `string()` value.
+ * The queries are compiled into a tree of steps, which is matched with a single pass over the pull events,
+ * subtrees not selected by any of the paths are skipped, unless their text is collected.
+ * @see XmlParser#query(java.io.Reader, XmlQuery, Handler)
+ */
+public class XmlQuery {
+
+	/**
+	 * Handler of the matched values.
+	 */
+	public interface Handler {
+		/**
+		 * @param path index of the matched path in the compiled query
+		 * @return false to stop reading the document
+		 */
+		boolean onMatch(int path, String value) throws Exception;
+	}
+
+	private static final String ANY = "*";
+	private static final String TEXT = "text()";
+	private static final int[] NONE = {};
+
+	// step of the elements not selected by the paths, inside an element with selected text
+	private static final Step UNMATCHED = new Step();
+
+	private final Step root = new Step();
+
+	private XmlQuery() {
+	}
+
+	public static XmlQuery compile(String... paths) throws XmlPullParserException {
+		XmlQuery result = new XmlQuery();
+		for (int i = 0; i < paths.length; i += 1) {
+			String path = paths[i];
+			if (!path.startsWith("/") || path.endsWith("/") || path.contains("//")) {
+				throw new XmlPullParserException("Unsupported path: `" + path + "`");
+			}
+
+			Step step = result.root;
+			String[] names = path.substring(1).split("/");
+			for (int n = 0; n < names.length; n += 1) {
+				String name = names[n];
+				boolean last = n == names.length - 1;
+				if (last && name.startsWith("@") && name.length() > 1) {
+					step.attributes.put(name.substring(1), append(step.attributes.get(name.substring(1)), i));
+					break;
+				}
+				if (last && name.equals(TEXT)) {
+					step.text = append(step.text, i);
+					break;
+				}
+				if (name.startsWith("@") || name.contains("(")) {
+					throw new XmlPullParserException("Unsupported step: `" + name + "` in path: `" + path + "`");
+				}
+
+				step = step.child(name);
+				if (last) {
+					step.text = append(step.text, i);
+				}
+			}
+		}
+		result.root.link();
+		return result;
+	}
+
+	void run(XmlParser parser, Handler handler) throws Exception {
+		XmlPullParser events = parser.parser;
+		ArrayList<Step> steps = new ArrayList<>();
+		ArrayList<StringBuilder> texts = new ArrayList<>();
+		int[] range = new int[2];
+		steps.add(root);
+		texts.add(null);
+
+		// number of the open elements collecting their text
+		int collecting = 0;
+
+		int event = parser.next();
+		while (event != XmlPullParser.END_DOCUMENT) {
+			int depth = events.getDepth();
+			switch (event) {
+				case XmlPullParser.START_TAG:
+					Step step = steps.get(depth - 1).match(events.getName());
+					if (step == null && collecting == 0) {
+						// no path continues here, skip the whole subtree
+						parser.skip();
+						event = events.getEventType();
+						continue;
+					}
+					if (step == null) {
+						// only the text of the subtree is needed
+						step = UNMATCHED;
+					}
+					if (steps.size() == depth) {
+						steps.add(null);
+						texts.add(null);
+					}
+					steps.set(depth, step);
+
+					for (String name : step.attributes.keySet()) {
+						String value = events.getAttributeValue(null, name);
+						if (value == null) {
+							continue;
+						}
+						for (int path : step.attributes.get(name)) {
+							if (!handler.onMatch(path, value)) {
+								return;
+							}
+						}
+					}
+
+					if (step.text != NONE) {
+						// the text buffers are reused for each depth
+						StringBuilder text = texts.get(depth);
+						if (text == null) {
+							text = new StringBuilder();
+							texts.set(depth, text);
+						}
+						text.setLength(0);
+						collecting += 1;
+					}
+					break;
+
+				case XmlPullParser.TEXT:
+					if (collecting == 0) {
+						break;
+					}
+					// the text belongs to the enclosing elements too, the outermost one has the longest text
+					char[] chars = events.getTextCharacters(range);
+					for (int i = 1; i <= depth; i += 1) {
+						if (steps.get(i).text != NONE) {
+							StringBuilder text = texts.get(i);
+							parser.checkTextLength(text.length() + range[1]);
+							text.append(chars, range[0], range[1]);
+						}
+					}
+					break;
+
+				case XmlPullParser.END_TAG:
+					if (steps.get(depth).text != NONE) {
+						collecting -= 1;
+					}
+					for (int path : steps.get(depth).text) {
+						if (!handler.onMatch(path, texts.get(depth).toString())) {
+							return;
+						}
+					}
+					steps.set(depth, null);
+					break;
+			}
+			event = parser.next();
+		}
+	}
+
+	private static int[] append(int[] values, int value) {
+		if (values == null) {
+			values = NONE;
+		}
+		int[] result = new int[values.length + 1];
+		System.arraycopy(values, 0, result, 0, values.length);
+		result[values.length] = value;
+		return result;
+	}
+
+	/**
+	 * A step of the compiled paths: an element with its selected text, attributes and the possible child steps.
+	 */
+	private static class Step {
+		private final HashMap<String, Step> children = new HashMap<>();
+		private final HashMap<String, int[]> attributes = new HashMap<>();
+		private Step any = null;
+		private int[] text = NONE;
+
+		private Step child(String name) {
+			if (ANY.equals(name)) {
+				if (any == null) {
+					any = new Step();
+				}
+				return any;
+			}
+			Step result = children.get(name);
+			if (result == null) {
+				result = new Step();
+				children.put(name, result);
+			}
+			return result;
+		}
+
+		/**
+		 * Add the selections and children of the other step to this one.
+		 */
+		private void include(Step other) {
+			for (String name : other.attributes.keySet()) {
+				for (int path : other.attributes.get(name)) {
+					attributes.put(name, append(attributes.get(name), path));
+				}
+			}
+			for (int path : other.text) {
+				text = append(text, path);
+			}
+			for (String name : other.children.keySet()) {
+				child(name).include(other.children.get(name));
+			}
+			if (other.any != null) {
+				child(ANY).include(other.any);
+			}
+		}
+
+		/**
+		 * Merge the wildcard step into the named steps, so an element is matched with a single lookup.
+		 */
+		private void link() {
+			if (any != null) {
+				for (Step child : children.values()) {
+					child.include(any);
+				}
+				any.link();
+			}
+			for (Step child : children.values()) {
+				child.link();
+			}
+		}
+
+		private Step match(String name) {
+			Step result = children.get(name);
+			if (result == null) {
+				return any;
+			}
+			return result;
+		}
+	}
+}
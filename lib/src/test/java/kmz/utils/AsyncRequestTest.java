@@ -0,0 +1,619 @@
+package kmz.utils;
+
+import okhttp3.Cache;
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Unit test of the requests, sent to a local server.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(shadows = {ShadowLog.class}, manifest = Config.NONE)
+public class AsyncRequestTest {
+
+    private MockWebServer server;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        server.shutdown();
+        AsyncRequest.configure(5, 5 * 60 * 1000, 5);
+    }
+
+    @Test
+    public void testHostLimit() throws Exception {
+        AsyncRequest.configure(5, 60000, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger received = new AtomicInteger();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                received.incrementAndGet();
+                release.await(10, TimeUnit.SECONDS);
+                return new MockResponse().setBody("ok");
+            }
+        });
+
+        CompletableFuture<String> first = new TextRequest(AsyncRequest.Method.GET, url("/first")).submit(executor, Runnable::run);
+        awaitCount(received, 1);
+
+        // configuring the same limit again must not allow more concurrent requests
+        AsyncRequest.configure(5, 60000, 1);
+        CompletableFuture<String> second = new TextRequest(AsyncRequest.Method.GET, url("/second")).submit(executor, Runnable::run);
+
+        // the waiting request can be cancelled
+        TextRequest cancelled = new TextRequest(AsyncRequest.Method.GET, url("/cancelled"));
+        CompletableFuture<String> third = cancelled.submit(executor, Runnable::run);
+        Thread.sleep(300);
+        Assert.assertEquals(1, received.get());
+        third.cancel(true);
+        Assert.assertTrue(cancelled.await() instanceof InterruptedIOException);
+
+        release.countDown();
+        Assert.assertEquals("ok", first.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals("ok", second.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(2, received.get());
+    }
+
+    @Test
+    public void testSubmit() throws Exception {
+        server.enqueue(new MockResponse().setBody("ok"));
+        TextRequest request = new TextRequest(AsyncRequest.Method.GET, url("/"));
+        CompletableFuture<String> result = request.submit(executor, Runnable::run);
+        try {
+            request.submit(executor, Runnable::run);
+            Assert.fail("submitted twice");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        Assert.assertEquals("ok", result.get(5, TimeUnit.SECONDS));
+
+        // errors thrown by the worker complete the future, and are delivered to the callbacks
+        server.enqueue(new MockResponse().setBody("ok"));
+        request = new TextRequest(AsyncRequest.Method.GET, url("/")) {
+            @Override
+            protected String readResponse(InputStream in) {
+                throw new AssertionError("failed");
+            }
+        };
+        CompletableFuture<String> failed = request.submit(executor, Runnable::run);
+        try {
+            failed.get(5, TimeUnit.SECONDS);
+            Assert.fail("error not reported");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof AssertionError);
+        }
+        Exception error = request.await();
+        Assert.assertTrue(error instanceof ExecutionException && error.getCause() instanceof AssertionError);
+
+        // the worker thread is kept
+        ExecutorService single = Executors.newSingleThreadExecutor();
+        try {
+            Thread worker = single.submit(Thread::currentThread).get(5, TimeUnit.SECONDS);
+            server.enqueue(new MockResponse().setBody("ok"));
+            request = new TextRequest(AsyncRequest.Method.GET, url("/")) {
+                @Override
+                protected String readResponse(InputStream in) {
+                    throw new AssertionError("failed");
+                }
+            };
+            request.submit(single, Runnable::run);
+            Assert.assertNotNull(request.await());
+            Assert.assertSame(worker, single.submit(Thread::currentThread).get(5, TimeUnit.SECONDS));
+        } finally {
+            single.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCoalesce() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger received = new AtomicInteger();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                received.incrementAndGet();
+                release.await(10, TimeUnit.SECONDS);
+                return new MockResponse().setBody("ok");
+            }
+        });
+        CompletableFuture<String> leader = new TextRequest(AsyncRequest.Method.GET, url("/")).coalesce().submit(executor, Runnable::run);
+        awaitCount(received, 1);
+
+        // the waiting requests do not hold the thread of the executor
+        long coalesced = AsyncRequest.getCoalescedCount();
+        ExecutorService single = Executors.newSingleThreadExecutor();
+        try {
+            CompletableFuture<String> first = new TextRequest(AsyncRequest.Method.GET, url("/")).coalesce().submit(single, Runnable::run);
+            TextRequest cancelled = new TextRequest(AsyncRequest.Method.GET, url("/"));
+            CompletableFuture<String> second = cancelled.coalesce().submit(single, Runnable::run);
+            Assert.assertEquals("free", single.submit(() -> "free").get(1, TimeUnit.SECONDS));
+            second.cancel(false);
+            Assert.assertTrue(cancelled.await() instanceof InterruptedIOException);
+
+            release.countDown();
+            Assert.assertEquals("ok", leader.get(5, TimeUnit.SECONDS));
+            Assert.assertEquals("ok", first.get(5, TimeUnit.SECONDS));
+            Assert.assertEquals(coalesced + 1, AsyncRequest.getCoalescedCount());
+            Assert.assertEquals(1, received.get());
+        } finally {
+            single.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testRetry() throws Exception {
+        long retries = AsyncRequest.getRetryCount();
+        server.enqueue(new MockResponse().setResponseCode(503));
+        server.enqueue(new MockResponse().setResponseCode(503));
+        server.enqueue(new MockResponse().setBody("ok"));
+        TextRequest request = new TextRequest(AsyncRequest.Method.GET, url("/"));
+        request.setRetryPolicy(new AsyncRequest.RetryPolicy().setMaxAttempts(3).setBackoff(10, 10, 1));
+        Assert.assertEquals("ok", request.run());
+        Assert.assertEquals(3, request.getAttemptCount());
+        Assert.assertEquals(retries + 2, AsyncRequest.getRetryCount());
+
+        // the attempts are limited
+        server.enqueue(new MockResponse().setResponseCode(503));
+        server.enqueue(new MockResponse().setResponseCode(503));
+        request = new TextRequest(AsyncRequest.Method.GET, url("/"));
+        request.setRetryPolicy(new AsyncRequest.RetryPolicy().setMaxAttempts(2).setBackoff(10, 10, 1));
+        request.run();
+        Assert.assertEquals(503, request.getResponseCode());
+        Assert.assertEquals(2, request.getAttemptCount());
+
+        // not idempotent requests are not retried
+        server.enqueue(new MockResponse().setResponseCode(503));
+        request = new TextRequest(AsyncRequest.Method.POST, url("/"));
+        request.setRetryPolicy(new AsyncRequest.RetryPolicy().setBackoff(10, 10, 1));
+        request.setBody(AsyncRequest.Body.of("text/plain", "body".getBytes(StandardCharsets.UTF_8)));
+        request.run();
+        Assert.assertEquals(503, request.getResponseCode());
+        Assert.assertEquals(1, request.getAttemptCount());
+        Assert.assertEquals(6, server.getRequestCount());
+        Assert.assertEquals(retries + 3, AsyncRequest.getRetryCount());
+    }
+
+    @Test
+    public void testHedgeHostLimit() throws Exception {
+        // the first request is late
+        final AtomicInteger received = new AtomicInteger();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                if (received.incrementAndGet() == 1) {
+                    Thread.sleep(500);
+                    return new MockResponse().setBody("late");
+                }
+                return new MockResponse().setBody("ok");
+            }
+        });
+
+        // the permit of the host is held by the first request
+        AsyncRequest.configure(5, 60000, 1);
+        long hedged = AsyncRequest.getHedgeCount();
+        TextRequest request = new TextRequest(AsyncRequest.Method.GET, url("/"));
+        request.setRetryPolicy(new AsyncRequest.RetryPolicy().hedgeAfter(50));
+        Assert.assertEquals("late", request.run());
+        Assert.assertEquals(hedged, AsyncRequest.getHedgeCount());
+        Assert.assertEquals(1, received.get());
+
+        received.set(0);
+        AsyncRequest.configure(5, 60000, 2);
+        request = new TextRequest(AsyncRequest.Method.GET, url("/"));
+        request.setRetryPolicy(new AsyncRequest.RetryPolicy().hedgeAfter(50));
+        Assert.assertEquals("ok", request.run());
+        Assert.assertEquals(hedged + 1, AsyncRequest.getHedgeCount());
+    }
+
+    @Test
+    public void testDeadline() throws Exception {
+        // the response is trickling, each read is in time
+        server.enqueue(new MockResponse().setBody(new String(new char[100]).replace('\0', 'x'))
+                .throttleBody(10, 100, TimeUnit.MILLISECONDS));
+        TextRequest request = new TextRequest(AsyncRequest.Method.GET, url("/"));
+        request.setDeadline(300);
+        long start = System.currentTimeMillis();
+        request.run();
+        Assert.assertTrue(request.await() instanceof SocketTimeoutException);
+        Assert.assertTrue(System.currentTimeMillis() - start < 900);
+
+        // waiting for the host limit is included
+        AsyncRequest.configure(5, 60000, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                release.await(10, TimeUnit.SECONDS);
+                return new MockResponse().setBody("ok");
+            }
+        });
+        CompletableFuture<String> first = new TextRequest(AsyncRequest.Method.GET, url("/")).submit(executor, Runnable::run);
+        request = new TextRequest(AsyncRequest.Method.GET, url("/"));
+        request.setDeadline(200);
+        start = System.currentTimeMillis();
+        request.run();
+        Assert.assertTrue(request.await() instanceof SocketTimeoutException);
+        Assert.assertTrue(System.currentTimeMillis() - start < 600);
+        release.countDown();
+        Assert.assertEquals("ok", first.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testTimeouts() throws Exception {
+        // the settings are kept when the connection is replaced
+        server.enqueue(new MockResponse().setBody("ok"));
+        final AtomicInteger useCaches = new AtomicInteger(-1);
+        TextRequest request = new TextRequest(AsyncRequest.Method.GET, url("/")) {
+            @Override
+            protected String readResponse(InputStream in) throws Exception {
+                useCaches.set(getConnection().getUseCaches() ? 1 : 0);
+                return super.readResponse(in);
+            }
+        };
+        request.useHttpCache(false);
+        request.setRequestHeader("X-Test", "test");
+        request.setTimeouts(1000, 1000, 1234);
+        Assert.assertEquals("ok", request.run());
+        Assert.assertEquals("test", server.takeRequest().getHeader("X-Test"));
+        Assert.assertEquals(0, useCaches.get());
+    }
+
+    @Test
+    public void testDownload() throws Exception {
+        File directory = Files.createTempDirectory("download").toFile();
+        File file = new File(directory, "file.txt");
+        File partial = new File(directory, "file.txt.part");
+        File validator = new File(directory, "file.txt.part.validator");
+
+        // continue the partial file with the same validator
+        Files.write(partial.toPath(), "hello ".getBytes(StandardCharsets.UTF_8));
+        Files.write(validator.toPath(), "\"v1\"".getBytes(StandardCharsets.UTF_8));
+        server.enqueue(new MockResponse().setResponseCode(206).setBody("world")
+                .setHeader("ETag", "\"v1\"").setHeader("Content-Range", "bytes 6-10/11"));
+        FileDownload download = new FileDownload(url("/file.txt"), file);
+        download.run();
+        Assert.assertNull(download.await());
+        Assert.assertEquals("hello world", new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        Assert.assertEquals(6, download.getResumedLength());
+        Assert.assertFalse(partial.exists());
+        Assert.assertFalse(validator.exists());
+        RecordedRequest recorded = server.takeRequest();
+        Assert.assertEquals("bytes=6-", recorded.getHeader("Range"));
+        Assert.assertEquals("\"v1\"", recorded.getHeader("If-Range"));
+
+        // the content was changed, the server sends all of it
+        Files.write(partial.toPath(), "stale ".getBytes(StandardCharsets.UTF_8));
+        Files.write(validator.toPath(), "\"v1\"".getBytes(StandardCharsets.UTF_8));
+        server.enqueue(new MockResponse().setBody("changed content").setHeader("ETag", "\"v2\""));
+        download = new FileDownload(url("/file.txt"), file);
+        download.run();
+        Assert.assertNull(download.await());
+        Assert.assertEquals("changed content", new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        Assert.assertEquals(0, download.getResumedLength());
+        Assert.assertEquals("\"v1\"", server.takeRequest().getHeader("If-Range"));
+
+        // the range must reach the end of the content
+        Files.write(partial.toPath(), "hello ".getBytes(StandardCharsets.UTF_8));
+        Files.write(validator.toPath(), "\"v1\"".getBytes(StandardCharsets.UTF_8));
+        server.enqueue(new MockResponse().setResponseCode(206).setBody("wor")
+                .setHeader("ETag", "\"v1\"").setHeader("Content-Range", "bytes 6-8/11"));
+        download = new FileDownload(url("/file.txt"), file);
+        download.run();
+        Assert.assertTrue(download.await() instanceof IOException);
+        Assert.assertFalse(partial.exists());
+        server.takeRequest();
+
+        // the partial file is written by one download
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger received = new AtomicInteger();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                received.incrementAndGet();
+                release.await(10, TimeUnit.SECONDS);
+                return new MockResponse().setBody("content");
+            }
+        });
+        CompletableFuture<File> result = new FileDownload(url("/file.txt"), file).submit(executor, Runnable::run);
+        awaitCount(received, 1);
+        download = new FileDownload(url("/file.txt"), file);
+        download.run();
+        Assert.assertTrue(download.await() instanceof IOException);
+        release.countDown();
+        Assert.assertEquals(file, result.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals("content", new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        Assert.assertEquals(4, server.getRequestCount());
+        Assert.assertTrue(file.delete() && directory.delete());
+    }
+
+    @Test
+    public void testTruncatedBody() throws Exception {
+        server.enqueue(new MockResponse().setBody("ok"));
+        TextRequest request = new TextRequest(AsyncRequest.Method.POST, url("/")) {
+            @Override
+            protected void sendRequest(OutputStream out) throws Exception {
+                out.write(new byte[64 * 1024]);
+                // the chunks are sent by an other thread of the connection
+                Thread.sleep(200);
+                throw new IOException("failed");
+            }
+        };
+        request.setStreaming(-1);
+        request.run();
+        Assert.assertEquals("failed", request.await().getMessage());
+        // the server did not receive a complete request
+        Assert.assertNull(server.takeRequest(500, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testCompressedBody() throws Exception {
+        byte[] content = new String(new char[10000]).replace('\0', 'x').getBytes(StandardCharsets.UTF_8);
+
+        // streamed in chunks
+        server.enqueue(new MockResponse().setBody("ok"));
+        TextRequest request = new TextRequest(AsyncRequest.Method.POST, url("/"));
+        request.setBody(AsyncRequest.Body.of("text/plain", content)).setStreaming(-1).compressRequestBody();
+        Assert.assertEquals("ok", request.run());
+        RecordedRequest recorded = server.takeRequest();
+        Assert.assertEquals("chunked", recorded.getHeader("Transfer-Encoding"));
+        Assert.assertEquals("gzip", recorded.getHeader("Content-Encoding"));
+        Assert.assertArrayEquals(content, readAll(new GZIPInputStream(recorded.getBody().inputStream())));
+
+        // buffered, sent with the compressed length
+        server.enqueue(new MockResponse().setBody("ok"));
+        request = new TextRequest(AsyncRequest.Method.POST, url("/")) {
+            @Override
+            protected void sendRequest(OutputStream out) throws Exception {
+                out.write(content);
+            }
+        };
+        request.compressRequestBody(AsyncRequest.Compression.DEFLATE, 9, 1024);
+        Assert.assertEquals("ok", request.run());
+        recorded = server.takeRequest();
+        Assert.assertEquals("deflate", recorded.getHeader("Content-Encoding"));
+        Assert.assertEquals(String.valueOf(recorded.getBodySize()), recorded.getHeader("Content-Length"));
+        Assert.assertTrue(recorded.getBodySize() < content.length);
+        Assert.assertArrayEquals(content, readAll(new InflaterInputStream(recorded.getBody().inputStream())));
+    }
+
+    @Test
+    public void testCacheStatistics() throws Exception {
+        // without http cache the responses are not counted
+        long misses = AsyncRequest.getCacheMissCount();
+        server.enqueue(new MockResponse().setBody("ok"));
+        Assert.assertEquals("ok", new TextRequest(AsyncRequest.Method.GET, url("/")).run());
+        Assert.assertEquals(misses, AsyncRequest.getCacheMissCount());
+
+        File directory = Files.createTempDirectory("cache").toFile();
+        OkHttpClient client = new OkHttpClient.Builder().cache(new Cache(directory, 1024 * 1024)).build();
+        try {
+            // not using the http cache of the client
+            server.enqueue(new MockResponse().setBody("ok"));
+            TextRequest request = new TextRequest(AsyncRequest.Method.GET, url("/"), client);
+            request.useHttpCache(false);
+            Assert.assertEquals("ok", request.run());
+            Assert.assertEquals(misses, AsyncRequest.getCacheMissCount());
+
+            // counted only with the http cache
+            long hits = AsyncRequest.getCacheHitCount();
+            server.enqueue(new MockResponse().setBody("ok").setHeader("Cache-Control", "max-age=60"));
+            Assert.assertEquals("ok", new TextRequest(AsyncRequest.Method.GET, url("/cached"), client).run());
+            Assert.assertEquals(misses + 1, AsyncRequest.getCacheMissCount());
+            Assert.assertEquals("ok", new TextRequest(AsyncRequest.Method.GET, url("/cached"), client).run());
+            Assert.assertEquals(hits + 1, AsyncRequest.getCacheHitCount());
+            Assert.assertEquals(3, server.getRequestCount());
+        } finally {
+            client.cache().delete();
+        }
+    }
+
+    @Test
+    public void testEntityCacheKey() throws Exception {
+        AsyncRequest.setEntityCache(1024 * 1024);
+        try {
+            server.enqueue(new MockResponse().setBody("en").setHeader("ETag", "\"en\""));
+            TextRequest request = new TextRequest(AsyncRequest.Method.GET, url("/text"));
+            request.setRequestHeader("Accept-Language", "en");
+            Assert.assertEquals("en", request.run());
+
+            // other representation of the same url
+            server.enqueue(new MockResponse().setBody("fr").setHeader("ETag", "\"fr\""));
+            request = new TextRequest(AsyncRequest.Method.GET, url("/text"));
+            request.setRequestHeader("Accept-Language", "fr");
+            Assert.assertEquals("fr", request.run());
+            Assert.assertFalse(request.isCachedEntity());
+            server.takeRequest();
+            Assert.assertNull(server.takeRequest().getHeader("If-None-Match"));
+
+            // revalidated with the validator of the cached entity
+            server.enqueue(new MockResponse().setResponseCode(304).setHeader("ETag", "\"en\""));
+            request = new TextRequest(AsyncRequest.Method.GET, url("/text"));
+            request.setRequestHeader("Accept-Language", "en");
+            Assert.assertEquals("en", request.run());
+            Assert.assertTrue(request.isCachedEntity());
+            Assert.assertEquals("\"en\"", server.takeRequest().getHeader("If-None-Match"));
+
+            // not modified, but with an other validator: the entity is evicted and requested again
+            server.enqueue(new MockResponse().setResponseCode(304).setHeader("ETag", "\"other\""));
+            server.enqueue(new MockResponse().setBody("en2").setHeader("ETag", "\"en2\""));
+            request = new TextRequest(AsyncRequest.Method.GET, url("/text"));
+            request.setRequestHeader("Accept-Language", "en");
+            Assert.assertEquals("en2", request.run());
+            Assert.assertFalse(request.isCachedEntity());
+            Assert.assertEquals("\"en\"", server.takeRequest().getHeader("If-None-Match"));
+            Assert.assertNull(server.takeRequest().getHeader("If-None-Match"));
+            server.enqueue(new MockResponse().setResponseCode(304).setHeader("ETag", "\"en2\""));
+            request = new TextRequest(AsyncRequest.Method.GET, url("/text"));
+            request.setRequestHeader("Accept-Language", "en");
+            Assert.assertEquals("en2", request.run());
+            Assert.assertTrue(request.isCachedEntity());
+            Assert.assertEquals("\"en2\"", server.takeRequest().getHeader("If-None-Match"));
+
+            // the requests with credentials are not cached
+            server.enqueue(new MockResponse().setBody("private").setHeader("ETag", "\"private\""));
+            request = new TextRequest(AsyncRequest.Method.GET, url("/private"));
+            request.setRequestHeader("Authorization", "Bearer token");
+            Assert.assertEquals("private", request.run());
+            server.enqueue(new MockResponse().setBody("public").setHeader("ETag", "\"public\""));
+            request = new TextRequest(AsyncRequest.Method.GET, url("/private"));
+            Assert.assertEquals("public", request.run());
+            Assert.assertFalse(request.isCachedEntity());
+            server.takeRequest();
+            Assert.assertNull(server.takeRequest().getHeader("If-None-Match"));
+        } finally {
+            AsyncRequest.setEntityCache(0);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int n; (n = in.read(buffer)) >= 0; ) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private URL url(String path) {
+        return server.url(path).url();
+    }
+
+    private static void awaitCount(AtomicInteger count, int expected) throws InterruptedException {
+        for (int i = 0; i < 500 && count.get() < expected; i += 1) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(expected, count.get());
+    }
+
+    /**
+     * Request reading the response as text.
+     */
+    static class TextRequest extends AsyncRequest<String> {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Exception error;
+
+        TextRequest(Method method, URL url) throws IOException {
+            super(method, url);
+        }
+
+        TextRequest(Method method, URL url, OkHttpClient client) throws IOException {
+            super(method, url, client);
+        }
+
+        /**
+         * Execute the request on the calling thread.
+         */
+        String run() {
+            String result = doInBackground();
+            onPostExecute(result);
+            return result;
+        }
+
+        /**
+         * Wait for the completion of the submitted request, and return its error.
+         */
+        Exception await() throws InterruptedException {
+            Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+            return error;
+        }
+
+        @Override
+        protected String readResponse(InputStream in) throws Exception {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int n; (n = in.read(buffer)) >= 0; ) {
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+
+        @Override
+        protected void onError(Exception error) {
+            this.error = error;
+            done.countDown();
+        }
+
+        @Override
+        protected void onResult(String result) {
+            done.countDown();
+        }
+
+        @Override
+        protected void onCancelled(String result) {
+            this.error = new InterruptedIOException("cancelled");
+            done.countDown();
+        }
+    }
+
+    /**
+     * Download into a file.
+     */
+    static class FileDownload extends AsyncDownload {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Exception error;
+
+        FileDownload(URL url, File file) throws IOException {
+            super(url, file);
+        }
+
+        void run() {
+            onPostExecute(doInBackground());
+        }
+
+        Exception await() throws InterruptedException {
+            Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+            return error;
+        }
+
+        @Override
+        protected void onError(Exception error) {
+            this.error = error;
+            done.countDown();
+        }
+
+        @Override
+        protected void onResult(File result) {
+            done.countDown();
+        }
+    }
+}
@@ -7,19 +7,27 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import kmz.utils.entity.Bookstore;
 import kmz.utils.entity.Company;
+import kmz.utils.entity.Drawing;
+import kmz.utils.entity.CompanyLazy;
 import kmz.utils.entity.Embedded;
 import kmz.utils.entity.Escapes;
 import kmz.utils.entity.FileSystem;
 import kmz.utils.entity.FoodMenu;
+import kmz.utils.entity.Invalid;
 import kmz.utils.entity.JsonTest;
 import kmz.utils.entity.Menu;
 import kmz.utils.entity.Person;
+import kmz.utils.entity.PersonImmutable;
+import kmz.utils.entity.Schedule;
+import kmz.utils.entity.Settings;
+import kmz.utils.entity.Ticket;
 import kmz.utils.entity.ValuesArray;
 import kmz.utils.entity.ValuesArrayWrapped;
 import kmz.utils.entity.ValuesList;
 import kmz.utils.entity.ValuesListWrapped;
 import kmz.utils.entity.Widget;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.ComparisonFailure;
 import org.junit.Test;
@@ -27,16 +35,39 @@ import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 import org.robolectric.shadows.ShadowLog;
+import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.PipedReader;
+import java.io.PipedWriter;
+import java.io.StringReader;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.DateTimeException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
 
 /**
  * Unit test, which will parse xml files and deserialize them into entities.
@@ -52,6 +83,7 @@ public class XmlParserTest {
     private static final File XML_PERSON = new File("person.xml");
     private static final File XML_ARRAY_VALUES = new File("array.xml");
     private static final File XML_ARRAY_WRAPPED = new File("array_wrapped.xml");
+    private static final File XML_ARRAY_SPLIT = new File("array_split.xml");
 
     // test files from json.org
     private static final File XML_MENU = new File("json.org/menu.xml");
@@ -67,6 +99,8 @@ public class XmlParserTest {
     private static final File XML_EMBEDDED = new File("xml/embedded.xml");
     private static final File XML_JSON_TEST = new File("xml/jsontest.xml");
     private static final File XML_FILE_SYSTEM = new File("xml/testdir.xml");
+    private static final File XML_DRAWING = new File("xml/drawing.xml");
+    private static final File XML_SETTINGS = new File("xml/settings.xml");
 
     @Before
     public void before() {
@@ -79,10 +113,12 @@ public class XmlParserTest {
         Menu xml1 = deserializeXmlParser(Menu.class, XML_MENU);
         Menu xml2 = deserializeXmlJackson(Menu.class, XML_MENU);
         Menu json = deserializeJson(Menu.Entity.class, JSON_MENU).menu;
+        Menu json1 = deserializeJsonXmlParser(Menu.Entity.class, JSON_MENU).menu;
 
         assertEqualsNotNull(xml2, xml1);
         assertEqualsNotNull(json, xml1);
         assertEqualsNotNull(json, xml2);
+        assertEqualsNotNull(json, json1);
     }
 
     @Test
@@ -90,10 +126,12 @@ public class XmlParserTest {
         Widget xml1 = deserializeXmlParser(Widget.class, XML_WIDGET);
         Widget xml2 = deserializeXmlJackson(Widget.class, XML_WIDGET);
         Widget json = deserializeJson(Widget.Entity.class, JSON_WIDGET).widget;
+        Widget json1 = deserializeJsonXmlParser(Widget.Entity.class, JSON_WIDGET).widget;
 
         assertEqualsNotNull(xml2, xml1);
         assertEqualsNotNull(json, xml1);
         assertEqualsNotNull(json, xml2);
+        assertEqualsNotNull(json, json1);
     }
 
     @Test
@@ -115,6 +153,54 @@ public class XmlParserTest {
         Assert.assertEquals(1, xml2.work_address.length);
     }
 
+    @Test
+    public void testImmutable() throws Exception {
+        Person person = deserializeXmlParser(Person.class, XML_PERSON);
+        PersonImmutable immutable = deserializeXmlParser(PersonImmutable.class, XML_PERSON);
+
+        Assert.assertEquals(person.id, immutable.id);
+        Assert.assertEquals(person.sex, immutable.sex);
+        Assert.assertEquals(person.name, immutable.name);
+        // missing primitive argument
+        Assert.assertEquals(0, immutable.salary);
+        Assert.assertEquals(2, immutable.home_address.size());
+        Assert.assertEquals("home2", immutable.home_address.get(1).type);
+        Assert.assertEquals(person.home_address[1].street, immutable.home_address.get(1).street);
+        Assert.assertEquals(1, immutable.work_address.length);
+        Assert.assertNull(immutable.work_address[0].type);
+        Assert.assertEquals(person.work_address[0].phone, immutable.work_address[0].phone);
+    }
+
+    @Test
+    public void testRecord() throws Exception {
+        // the tests are compiled for platforms without records, compile the record when running on a newer jdk
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        Assume.assumeTrue(compiler != null && Runtime.version().feature() >= 16);
+
+        File dir = Files.createTempDirectory("record").toFile();
+        File source = new File(dir, "Point.java");
+        Files.write(source.toPath(), "public record Point(int x, int y, String label, java.util.List<String> tag) {}".getBytes(StandardCharsets.UTF_8));
+        try {
+            Assert.assertEquals(0, compiler.run(null, null, null, "-d", dir.getPath(), source.getPath()));
+            try (URLClassLoader loader = new URLClassLoader(new URL[] {dir.toURI().toURL()}, XmlParserTest.class.getClassLoader())) {
+                Class<?> type = loader.loadClass("Point");
+                Object point = new XmlParser().readValue(new StringReader(
+                        "<point x=\"3\"><label>origin</label><tag>a</tag><tag>b</tag></point>"), type);
+
+                // bound with the canonical constructor, the components are matched by name
+                Assert.assertEquals(3, type.getMethod("x").invoke(point));
+                Assert.assertEquals(0, type.getMethod("y").invoke(point));
+                Assert.assertEquals("origin", type.getMethod("label").invoke(point));
+                Assert.assertEquals(Arrays.asList("a", "b"), type.getMethod("tag").invoke(point));
+            }
+        } finally {
+            for (File file : dir.listFiles()) {
+                Assert.assertTrue(file.delete());
+            }
+            Assert.assertTrue(dir.delete());
+        }
+    }
+
     @Test
     public void testArray() throws Exception {
         testParseFile(byte[].class, XML_ARRAY_VALUES);
@@ -142,6 +228,303 @@ public class XmlParserTest {
         testParseFile(ValuesArrayWrapped.class, XML_ARRAY_WRAPPED);
     }
 
+    @Test
+    public void testArrayMerge() throws Exception {
+        // repeated parsing, the pre-sized lists must not change the result
+        for (int i = 0; i < 3; i += 1) {
+            assertEqualsNotNull(deserializeXmlParser(ValuesArray.class, XML_ARRAY_VALUES), deserializeXmlParser(ValuesArray.class, XML_ARRAY_SPLIT));
+            assertEqualsNotNull(deserializeXmlParser(ValuesList.class, XML_ARRAY_VALUES), deserializeXmlParser(ValuesList.class, XML_ARRAY_SPLIT));
+        }
+    }
+
+    @Test
+    public void testText() throws Exception {
+        // text split by entities, character references, cdata sections and comments is merged into one value
+        String xml = "<escapes>\n"
+                + "    <text>a &amp; b<![CDATA[ <c> ]]>&#100;<!-- comment -->e</text>\n"
+                + "</escapes>\n";
+        Escapes escapes = new XmlParser().readValue(new StringReader(xml), Escapes.class);
+        Assert.assertEquals("a & b <c> de", escapes.text);
+    }
+
+    @Test
+    public void testEnum() throws Exception {
+        String xml = "<ticket state=\"OPEN\">\n"
+                + "    <priority>High</priority>\n"
+                + "    <label>low</label>\n"
+                + "    <label>!</label>\n"
+                + "    <label>critical</label>\n"
+                + "    <label>unknown</label>\n"
+                + "</ticket>\n";
+
+        Ticket ticket = new XmlParser().readValue(new StringReader(xml), Ticket.class);
+        Assert.assertEquals(Ticket.State.OPEN, ticket.state);
+        Assert.assertEquals(Ticket.Priority.HIGH, ticket.priority);
+        Assert.assertEquals(Arrays.asList(Ticket.Priority.LOW, Ticket.Priority.CRITICAL, Ticket.Priority.CRITICAL, Ticket.Priority.NORMAL), ticket.labels);
+
+        try {
+            new XmlParser().readValue(new StringReader("<ticket state=\"open\"/>"), Ticket.class);
+            Assert.fail("strict lookup must reject unknown values");
+        } catch (XmlPullParserException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    @Test
+    public void testTime() throws Exception {
+        String xml = "<schedule created=\"2017-03-12T10:15:30.5Z\">\n"
+                + "    <day>2017-03-12</day>\n"
+                + "    <start>2017-03-12T12:00+02:00</start>\n"
+                + "    <duration>PT1H30M</duration>\n"
+                + "    <alarm>11:30</alarm>\n"
+                + "    <meeting>2017-03-12T12:00+01:00[Europe/Paris]</meeting>\n"
+                + "    <reminder>2017.03.12-11:45</reminder>\n"
+                + "    <reminder>2017.03.12-11:55</reminder>\n"
+                + "</schedule>\n";
+        String json = "{\"created\": \"2017-03-12T10:15:30.5Z\", \"day\": \"2017-03-12\", \"start\": \"2017-03-12T12:00+02:00\", "
+                + "\"duration\": \"PT1H30M\", \"alarm\": \"11:30\", \"meeting\": \"2017-03-12T12:00+01:00[Europe/Paris]\", \"reminder\": [\"2017.03.12-11:45\", \"2017.03.12-11:55\"]}";
+
+        Schedule schedule = new XmlParser().readValue(new StringReader(xml), Schedule.class);
+        Assert.assertEquals(Instant.parse("2017-03-12T10:15:30.500Z"), schedule.created);
+        Assert.assertEquals(LocalDate.of(2017, 3, 12), schedule.day);
+        Assert.assertEquals(OffsetDateTime.parse("2017-03-12T12:00+02:00"), schedule.start);
+        Assert.assertEquals(Duration.ofMinutes(90), schedule.duration);
+        Assert.assertEquals(LocalTime.of(11, 30), schedule.alarm);
+        Assert.assertEquals(ZonedDateTime.parse("2017-03-12T12:00+01:00[Europe/Paris]"), schedule.meeting);
+        Assert.assertEquals(Arrays.asList(LocalDateTime.of(2017, 3, 12, 11, 45), LocalDateTime.of(2017, 3, 12, 11, 55)), schedule.reminders);
+
+        assertEqualsNotNull(schedule, new XmlParser().readJson(new StringReader(json), Schedule.class));
+
+        // the values rejected by java.time are rejected by the fast path too
+        assertTimeFails(OffsetDateTime.class, "2017-03-12T12:00+18:30");
+        assertTimeFails(Instant.class, "2017-03-12T12:00+18:30");
+        assertTimeFails(Instant.class, "2017-02-30T12:00Z");
+        assertTimeFails(Duration.class, "PT1S30M");
+        assertTimeFails(Duration.class, "PT1M1M");
+        assertTimeFails(Duration.class, "P1DT");
+        Assert.assertEquals(Duration.parse("P1DT2H3M4.5S"), new XmlParser().readValue(new StringReader("<d>P1DT2H3M4.5S</d>"), Duration.class));
+        Assert.assertEquals(OffsetDateTime.parse("2017-03-12T12:00-18:00"), new XmlParser().readValue(new StringReader("<d>2017-03-12T12:00-18:00</d>"), OffsetDateTime.class));
+        // the values not handled by the fast path are parsed by java.time, like a leap second
+        Assert.assertEquals(Instant.parse("2016-12-31T23:59:60Z"), new XmlParser().readValue(new StringReader("<d>2016-12-31T23:59:60Z</d>"), Instant.class));
+    }
+
+    private static void assertTimeFails(Class<?> type, String value) throws Exception {
+        try {
+            Object result = new XmlParser().readValue(new StringReader("<value>" + value + "</value>"), type);
+            Assert.fail("invalid value parsed: " + value + " as: " + result);
+        } catch (DateTimeException e) {
+            // expected, reported by java.time
+        }
+    }
+
+    @Test
+    public void testStream() throws Exception {
+        String stream = "<menuitem value=\"New\" onclick=\"CreateNewDoc()\" />\n"
+                + "<menuitem value=\"Open\" onclick=\"OpenDoc()\" />"
+                + "<menuitem value=\"Close\" onclick=\"CloseDoc()\" />\n";
+
+        Menu menu = deserializeXmlParser(Menu.class, XML_MENU);
+        ArrayList<Menu.MenuItem> items = new ArrayList<>();
+        new XmlParser().readValues(new StringReader(stream), Menu.MenuItem.class, items::add);
+        assertEqualsNotNull(menu.popup.menuitem, items.toArray());
+
+        // stop reading after the first value
+        items.clear();
+        new XmlParser().readValues(new StringReader(stream), Menu.MenuItem.class, value -> {
+            items.add(value);
+            return false;
+        });
+        Assert.assertEquals(1, items.size());
+
+        // each value is delivered before the next element is available
+        PipedWriter writer = new PipedWriter();
+        PipedReader reader = new PipedReader(writer);
+        BlockingQueue<Object> values = new LinkedBlockingQueue<>();
+        Thread thread = new Thread(() -> {
+            try {
+                new XmlParser().readValues(reader, String.class, values::add);
+                values.add("end");
+            } catch (Exception e) {
+                values.add(e);
+            }
+        });
+        thread.start();
+        for (String value : new String[] {"first", "second", "third"}) {
+            writer.write("<value>" + value + "</value>");
+            writer.flush();
+            Assert.assertEquals(value, values.poll(5, TimeUnit.SECONDS));
+        }
+        writer.close();
+        Assert.assertEquals("end", values.poll(5, TimeUnit.SECONDS));
+        thread.join();
+    }
+
+    @Test
+    public void testVisitor() throws Exception {
+        Company company = deserializeXmlParser(Company.class, XML_EMPLOYEES);
+        Field id = Company.Employee.class.getField("id");
+        Field name = Company.Employee.class.getField("name");
+
+        int[] sum = {0, 0, 0};
+        ArrayList<String> names = new ArrayList<>();
+        XmlParser.Visitor visitor = new XmlParser.Visitor() {
+            @Override
+            public void onBegin(Field field, Class<?> type) {
+                if (type == Company.Employee.class) {
+                    sum[1] += 1;
+                }
+            }
+
+            @Override
+            public void onValue(Field field, int value) {
+                Assert.assertEquals(id, field);
+                sum[0] += value;
+            }
+
+            @Override
+            public void onValue(Field field, Object value) {
+                sum[2] += 1;
+                if (name.equals(field)) {
+                    names.add((String) value);
+                }
+            }
+        };
+        try (InputStream f = XmlParserTest.class.getClassLoader().getResourceAsStream(XML_EMPLOYEES.getPath())) {
+            if (f == null) throw new FileNotFoundException(XML_EMPLOYEES.getPath());
+            new XmlParser().visitValue(new InputStreamReader(f), Company.class, visitor);
+        }
+
+        int expected = 0;
+        for (Company.Employee employee : company.employees) {
+            expected += employee.id;
+        }
+        Assert.assertEquals(expected, sum[0]);
+        Assert.assertEquals(company.employees.size(), sum[1]);
+        // name, position and department are delivered as objects, ids are not boxed
+        Assert.assertEquals(3 * company.employees.size(), sum[2]);
+        Assert.assertEquals(company.employees.get(0).name, names.get(0));
+    }
+
+    @Test
+    public void testQuery() throws Exception {
+        Company company = deserializeXmlParser(Company.class, XML_EMPLOYEES);
+        XmlQuery query = XmlQuery.compile(
+                "/company/employees/employee/id",
+                "/company/employees/*/name",
+                "/company/*/employee/name/text()",
+                "/company/unknown/@value"
+        );
+
+        ArrayList<String> ids = new ArrayList<>();
+        ArrayList<String> names = new ArrayList<>();
+        ArrayList<String> texts = new ArrayList<>();
+        try (InputStream f = XmlParserTest.class.getClassLoader().getResourceAsStream(XML_EMPLOYEES.getPath())) {
+            if (f == null) throw new FileNotFoundException(XML_EMPLOYEES.getPath());
+            new XmlParser().query(new InputStreamReader(f), query, (path, value) -> {
+                switch (path) {
+                    case 0:
+                        ids.add(value);
+                        break;
+                    case 1:
+                        names.add(value);
+                        break;
+                    case 2:
+                        texts.add(value);
+                        break;
+                    default:
+                        Assert.fail("unexpected match: " + path);
+                }
+                return true;
+            });
+        }
+
+        Assert.assertEquals(company.employees.size(), ids.size());
+        Assert.assertEquals(names, texts);
+        for (int i = 0; i < company.employees.size(); i += 1) {
+            Assert.assertEquals(String.valueOf(company.employees.get(i).id), ids.get(i));
+            Assert.assertEquals(company.employees.get(i).name, names.get(i));
+        }
+
+        // attributes, stop after the second match
+        ArrayList<String> values = new ArrayList<>();
+        try (InputStream f = XmlParserTest.class.getClassLoader().getResourceAsStream(XML_MENU.getPath())) {
+            if (f == null) throw new FileNotFoundException(XML_MENU.getPath());
+            new XmlParser().query(new InputStreamReader(f), XmlQuery.compile("/menu/@id", "/menu/popup/menuitem/@value"), (path, value) -> {
+                values.add(value);
+                return values.size() < 2;
+            });
+        }
+        Assert.assertEquals(Arrays.asList("file", "New"), values);
+
+        // the text of the descendants is included
+        values.clear();
+        new XmlParser().query(new StringReader("<p>Hello <b>bold <i>and</i> nested</b> world<skip>!</skip></p>"),
+                XmlQuery.compile("/p/text()", "/p/b"), (path, value) -> values.add(path + ":" + value));
+        Assert.assertEquals(Arrays.asList("1:bold and nested", "0:Hello bold and nested world!"), values);
+    }
+
+    @Test
+    public void testSubtypes() throws Exception {
+        Drawing drawing = deserializeXmlParser(Drawing.class, XML_DRAWING);
+
+        Assert.assertEquals("shapes", drawing.name);
+        Assert.assertEquals(4, drawing.shapes.size());
+        Assert.assertEquals(2, ((Drawing.Circle) drawing.shapes.get(0)).radius);
+        Assert.assertEquals(3, ((Drawing.Square) drawing.shapes.get(1)).size);
+        Assert.assertEquals(4, ((Drawing.Circle) drawing.shapes.get(2)).radius);
+        Assert.assertEquals(6, ((Drawing.Circle) drawing.shapes.get(3)).radius);
+        Assert.assertEquals("c3", drawing.shapes.get(3).id);
+
+        // selected by the discriminator attribute
+        Assert.assertEquals(10, ((Drawing.Square) drawing.background).size);
+        Assert.assertEquals("bg", drawing.background.id);
+
+        // unknown subtype of an abstract class is skipped
+        Assert.assertNull(drawing.foreground);
+    }
+
+    @Test
+    public void testMap() throws Exception {
+        Settings settings = deserializeXmlParser(Settings.class, XML_SETTINGS);
+
+        // keys from the tag names, in document order
+        Assert.assertEquals(Arrays.asList("host", "port", "empty"), new ArrayList<>(settings.properties.keySet()));
+        Assert.assertEquals("localhost", settings.properties.get("host"));
+        Assert.assertEquals("8080", settings.properties.get("port"));
+        Assert.assertNull(settings.properties.get("empty"));
+
+        // keys from attributes, the unwrapped entries are merged
+        Assert.assertEquals(3, settings.users.size());
+        Assert.assertEquals("alice", settings.users.get(7).name);
+        Assert.assertEquals("bob", settings.users.get(3).name);
+        Assert.assertEquals("carol", settings.users.get(12).name);
+        Assert.assertNull(settings.users.get(1));
+
+        // keys from child elements
+        Assert.assertEquals(Arrays.asList("admin", "guest"), new ArrayList<>(settings.groups.keySet()));
+        Assert.assertEquals(9, settings.groups.get("guest").level);
+
+        Settings json = new XmlParser().readJson(new StringReader("{\"properties\": {\"host\": \"localhost\", \"port\": 8080}}"), Settings.class);
+        Assert.assertEquals("8080", json.properties.get("port"));
+    }
+
+    @Test
+    public void testLongMap() {
+        LongMap<String> map = new LongMap<>();
+        for (long i = 0; i < 1000; i += 1) {
+            Assert.assertNull(map.put(i * 31, String.valueOf(i)));
+        }
+        Assert.assertEquals(1000, map.size());
+        for (long i = 0; i < 1000; i += 2) {
+            Assert.assertEquals(String.valueOf(i), map.remove(i * 31));
+        }
+        Assert.assertEquals(500, map.size());
+        for (long i = 0; i < 1000; i += 1) {
+            Assert.assertEquals(i % 2 == 0 ? null : String.valueOf(i), map.get(i * 31));
+        }
+        Assert.assertEquals(500, map.keys().length);
+    }
+
     @Test
     public void testAssets() throws Exception {
         testParseFile(Bookstore.class, XML_BOOKS);
@@ -150,6 +533,139 @@ public class XmlParserTest {
         testParseFile(FoodMenu.class, XML_FOOD_MENU);
     }
 
+    @Test
+    public void testLazy() throws Exception {
+        Company company = deserializeXmlParser(Company.class, XML_EMPLOYEES);
+        CompanyLazy lazy = deserializeXmlParser(CompanyLazy.class, XML_EMPLOYEES);
+
+        Assert.assertNotNull(lazy.employees);
+        assertEqualsNotNull(company.employees.toArray(), lazy.employees.get());
+        Assert.assertSame(lazy.employees.get(), lazy.employees.get());
+
+        // the wrapper is not bound as the value
+        CompanyLazy.Manager manager = new XmlParser().readValue(new StringReader(
+                "<company><manager><employee><id>7</id><name>Ann</name></employee></manager></company>"), CompanyLazy.Manager.class);
+        Assert.assertEquals(7, manager.manager.get().id);
+        Assert.assertEquals("Ann", manager.manager.get().name);
+
+        // the repeated unwrapped elements are merged
+        CompanyLazy.Repeated repeated = new XmlParser().readValue(new StringReader(
+                "<company><employee><id>1</id></employee><name>Acme</name><employee><id>2</id></employee><employee><id>3</id></employee></company>"),
+                CompanyLazy.Repeated.class);
+        Assert.assertEquals("Acme", repeated.name);
+        Assert.assertEquals(3, repeated.employees.get().length);
+        Assert.assertEquals(1, repeated.employees.get()[0].id);
+        Assert.assertEquals(3, repeated.employees.get()[2].id);
+
+        // the deferred parsing applies the limits of the parser
+        CompanyLazy limited = deserializeXmlParser(new XmlParser().setMaxCollectionSize(2), CompanyLazy.class, XML_EMPLOYEES);
+        try {
+            limited.employees.get();
+            Assert.fail("expected limit exceeded");
+        } catch (XmlParser.LimitExceededException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRegister() throws Exception {
+        XmlParser.register(Company.class, Person[].class, Settings.class, Drawing.class);
+
+        assertRegisterFails(Invalid.RawList.class);
+        assertRegisterFails(Invalid.WildcardMap.class);
+        assertRegisterFails(Invalid.NestedList.class);
+        assertRegisterFails(Invalid.Collision.class);
+        XmlParser.register(Invalid.Base.class);
+        Assert.assertTrue(assertRegisterFails(Invalid.Shadowed.class).contains("shadowed"));
+        assertRegisterFails(Invalid.Abstract.class);
+
+        // the failed registration must not leave broken types in the cache
+        assertRegisterFails(Invalid.Reference.class);
+        assertRegisterFails(Invalid.Valid.class);
+        assertRegisterFails(Invalid.Reference.class);
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        XmlCache cache = new XmlCache(3000);
+        Company company = deserializeXmlCache(cache, Company.class, XML_EMPLOYEES);
+        CompanyLazy lazy = deserializeXmlCache(cache, CompanyLazy.class, XML_EMPLOYEES);
+        Assert.assertSame(company, deserializeXmlCache(cache, Company.class, XML_EMPLOYEES));
+        assertEqualsNotNull(deserializeXmlParser(Company.class, XML_EMPLOYEES), company);
+        Assert.assertEquals(1, cache.hitCount());
+        Assert.assertEquals(2, cache.missCount());
+
+        // the least recently used document is evicted
+        deserializeXmlCache(cache, Person.class, XML_PERSON);
+        Assert.assertEquals(1, cache.evictionCount());
+        Assert.assertSame(company, deserializeXmlCache(cache, Company.class, XML_EMPLOYEES));
+        Assert.assertNotSame(lazy, deserializeXmlCache(cache, CompanyLazy.class, XML_EMPLOYEES));
+        Assert.assertTrue(cache.weight() <= 3000);
+
+        // serializable values are spilled to disk
+        File spill = Files.createTempDirectory("spill").toFile();
+        cache = new XmlCache(40, spill);
+        Assert.assertEquals("first", cache.readValue(new StringReader("<value>first</value>"), String.class));
+        Assert.assertEquals("second", cache.readValue(new StringReader("<value>second</value>"), String.class));
+        Assert.assertEquals("first", cache.readValue(new StringReader("<value>first</value>"), String.class));
+        Assert.assertEquals(1, cache.spillHitCount());
+        cache.clear();
+        Assert.assertArrayEquals(new String[0], spill.list());
+
+        // the values spilled by an earlier process are deleted
+        cache = new XmlCache(40, spill);
+        cache.readValue(new StringReader("<value>first</value>"), String.class);
+        cache.readValue(new StringReader("<value>second</value>"), String.class);
+        Assert.assertEquals(1, spill.list().length);
+        new XmlCache(40, spill);
+        Assert.assertArrayEquals(new String[0], spill.list());
+        Assert.assertTrue(spill.delete());
+
+        // the documents longer than the limit are parsed without being cached
+        cache = new XmlCache(16);
+        Assert.assertEquals("a long document", cache.readValue(new StringReader("<value>a long document</value>"), String.class));
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(1, cache.missCount());
+    }
+
+    @Test
+    public void testLimits() throws Exception {
+        // the document is within the limits
+        deserializeXmlParser(new XmlParser()
+                .setMaxDepth(4)
+                .setMaxElements(42)
+                .setMaxTextLength(32)
+                .setMaxCollectionSize(8), Company.class, XML_EMPLOYEES);
+
+        assertLimitExceeded(new XmlParser().setMaxDepth(3), Company.class, XML_EMPLOYEES);
+        assertLimitExceeded(new XmlParser().setMaxElements(41), Company.class, XML_EMPLOYEES);
+        assertLimitExceeded(new XmlParser().setMaxTextLength(16), Company.class, XML_EMPLOYEES);
+        assertLimitExceeded(new XmlParser().setMaxCollectionSize(7), Company.class, XML_EMPLOYEES);
+
+        // the text split into several events is limited as a whole
+        String split = "<p>12345<b>67890</b>12345<![CDATA[67890]]></p>";
+        new XmlParser().setMaxTextLength(20).query(new StringReader(split), XmlQuery.compile("/p"), (path, value) -> true);
+        try {
+            new XmlParser().setMaxTextLength(8).query(new StringReader(split), XmlQuery.compile("/p"), (path, value) -> true);
+            Assert.fail("limit not exceeded");
+        } catch (XmlParser.LimitExceededException e) {
+            System.out.println(e.getMessage());
+        }
+
+        // the nesting of json documents is limited the same way, instead of overflowing the stack
+        StringBuilder json = new StringBuilder("{\"directory\":");
+        for (int i = 0; i < 100000; i += 1) {
+            json.append("{\"directory\":[");
+        }
+        new XmlParser().setMaxDepth(5).readJson(new StringReader("{\"directory\":{\"directory\":[{\"name\":\"a\"}]}}"), FileSystem.class);
+        try {
+            new XmlParser().setMaxDepth(64).readJson(new StringReader(json.toString()), FileSystem.class);
+            Assert.fail("limit not exceeded");
+        } catch (XmlParser.LimitExceededException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
     @Test(expected = Exception.class)
     // embedded text cannot be parsed
     public void testEmbedded() throws Exception {
@@ -187,12 +703,44 @@ public class XmlParserTest {
     }
 
     private static <Entity> Entity deserializeXmlParser(Class<Entity> type, File file) throws Exception {
+        return deserializeXmlParser(new XmlParser(), type, file);
+    }
+
+    private static <Entity> Entity deserializeXmlCache(XmlCache cache, Class<Entity> type, File file) throws Exception {
+        try (InputStream f = XmlParserTest.class.getClassLoader().getResourceAsStream(file.getPath())) {
+            if (f == null) throw new FileNotFoundException(file.getPath());
+            return cache.readValue(new InputStreamReader(f), type);
+        }
+    }
+
+    private static <Entity> Entity deserializeXmlParser(XmlParser parser, Class<Entity> type, File file) throws Exception {
         try (InputStream f = XmlParserTest.class.getClassLoader().getResourceAsStream(file.getPath())) {
             if (f == null) throw new FileNotFoundException(file.getPath());
-            return new XmlParser().readValue(new InputStreamReader(f), type);
+            return parser.readValue(new InputStreamReader(f), type);
         }
     }
 
+    private static String assertRegisterFails(Class<?> type) {
+        try {
+            XmlParser.register(type);
+        } catch (XmlPullParserException e) {
+            System.out.println(e.getMessage());
+            return e.getMessage();
+        }
+        Assert.fail("registration did not fail: " + type);
+        return null;
+    }
+
+    private static void assertLimitExceeded(XmlParser parser, Class<?> type, File file) throws Exception {
+        try {
+            deserializeXmlParser(parser, type, file);
+        } catch (XmlParser.LimitExceededException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+        Assert.fail("limit not exceeded");
+    }
+
     private static <Entity> Entity deserializeJson(Class<Entity> type, File file) throws Exception {
         try (InputStream f = XmlParserTest.class.getClassLoader().getResourceAsStream(file.getPath())) {
             if (f == null) throw new FileNotFoundException(file.getPath());
@@ -200,6 +748,13 @@ public class XmlParserTest {
         }
     }
 
+    private static <Entity> Entity deserializeJsonXmlParser(Class<Entity> type, File file) throws Exception {
+        try (InputStream f = XmlParserTest.class.getClassLoader().getResourceAsStream(file.getPath())) {
+            if (f == null) throw new FileNotFoundException(file.getPath());
+            return new XmlParser().readJson(new InputStreamReader(f), type);
+        }
+    }
+
     private static void assertEqualsNotNull(Object expected, Object actual) throws Exception {
         Assert.assertNotNull(expected);
         DeepCompare.equals(expected, actual, Assert::assertEquals);
@@ -0,0 +1,20 @@
+package kmz.utils.entity;
+
+import kmz.utils.XmlParser;
+
+public class CompanyLazy {
+	@XmlParser.Name(name = "employee", wrapper = "employees")
+	public XmlParser.Lazy<Company.Employee[]> employees;
+
+	public static class Manager {
+		@XmlParser.Name(name = "employee", wrapper = "manager")
+		public XmlParser.Lazy<Company.Employee> manager;
+	}
+
+	public static class Repeated {
+		public String name;
+
+		@XmlParser.Name(name = "employee")
+		public XmlParser.Lazy<Company.Employee[]> employees;
+	}
+}
@@ -0,0 +1,34 @@
+package kmz.utils.entity;
+
+import kmz.utils.XmlParser;
+
+import java.util.List;
+
+public class Drawing {
+	public String name;
+
+	@XmlParser.Subtypes({
+			@XmlParser.Subtype(name = "circle", type = Circle.class),
+			@XmlParser.Subtype(name = "square", type = Square.class)
+	})
+	public List<Shape> shapes;
+
+	public Shape background;
+	public Shape foreground;
+
+	@XmlParser.Subtypes(attribute = "type", value = {
+			@XmlParser.Subtype(name = "circle", type = Circle.class),
+			@XmlParser.Subtype(name = "square", type = Square.class)
+	})
+	public static abstract class Shape {
+		public String id;
+	}
+
+	public static class Circle extends Shape {
+		public int radius;
+	}
+
+	public static class Square extends Shape {
+		public int size;
+	}
+}
@@ -0,0 +1,57 @@
+package kmz.utils.entity;
+
+import kmz.utils.XmlParser;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Misconfigured entities, rejected at registration.
+ */
+public class Invalid {
+	public static class RawList {
+		@SuppressWarnings("rawtypes")
+		public List values;
+	}
+
+	public static class WildcardMap {
+		@XmlParser.Name(name = "entry", key = "@name")
+		public Map<String, ? extends Number> values;
+	}
+
+	public static class NestedList {
+		public List<List<String>> values;
+	}
+
+	public static class Collision {
+		public String id;
+
+		@XmlParser.Name(name = "id")
+		public String identifier;
+	}
+
+	public static class Base {
+		public String id;
+	}
+
+	public static class Shadowed extends Base {
+		public String id;
+	}
+
+	public static abstract class Shape {
+		public int x;
+	}
+
+	public static class Abstract {
+		public Shape shape;
+	}
+
+	public static class Reference {
+		public Valid valid;
+		public RawList invalid;
+	}
+
+	public static class Valid {
+		public Reference reference;
+	}
+}
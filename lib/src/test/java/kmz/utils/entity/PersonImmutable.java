@@ -0,0 +1,43 @@
+package kmz.utils.entity;
+
+import kmz.utils.XmlParser.Name;
+
+import java.util.List;
+
+public class PersonImmutable {
+	public static class Address {
+		public final String type;
+		public final String street;
+		public final String phone;
+
+		public Address(@Name(name = "type") String type, @Name(name = "street") String street, @Name(name = "phone") String phone) {
+			this.type = type;
+			this.street = street;
+			this.phone = phone;
+		}
+	}
+
+	public final int id;
+	public final String name;
+	public final String sex;
+	public final long salary;
+
+	public final List<Address> home_address;
+	public final Address[] work_address;
+
+	public PersonImmutable(
+			@Name(name = "id") int id,
+			@Name(name = "name") String name,
+			@Name(name = "sex") String sex,
+			@Name(name = "salary") long salary,
+			@Name(name = "home_address") List<Address> home_address,
+			@Name(name = "work_address") Address[] work_address
+	) {
+		this.id = id;
+		this.name = name;
+		this.sex = sex;
+		this.salary = salary;
+		this.home_address = home_address;
+		this.work_address = work_address;
+	}
+}
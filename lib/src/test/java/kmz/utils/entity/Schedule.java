@@ -0,0 +1,26 @@
+package kmz.utils.entity;
+
+import kmz.utils.XmlParser;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.ZonedDateTime;
+import java.util.List;
+
+public class Schedule {
+	public Instant created;
+	public LocalDate day;
+	public OffsetDateTime start;
+	public Duration duration;
+
+	// parsed by java.time
+	public LocalTime alarm;
+	public ZonedDateTime meeting;
+
+	@XmlParser.Name(name = "reminder", format = "yyyy.MM.dd-HH:mm")
+	public List<LocalDateTime> reminders;
+}
@@ -0,0 +1,27 @@
+package kmz.utils.entity;
+
+import kmz.utils.LongMap;
+import kmz.utils.XmlParser;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+public class Settings {
+	@XmlParser.Name(name = "property", wrapper = "properties")
+	public Map<String, String> properties;
+
+	@XmlParser.Name(name = "user", key = "@id")
+	public LongMap<User> users;
+
+	@XmlParser.Name(name = "group", wrapper = "groups", key = "name")
+	public TreeMap<String, Group> groups;
+
+	public static class User {
+		public String name;
+	}
+
+	public static class Group {
+		public String name;
+		public int level;
+	}
+}
@@ -0,0 +1,28 @@
+package kmz.utils.entity;
+
+import kmz.utils.XmlParser;
+
+import java.util.List;
+
+public class Ticket {
+	@XmlParser.EnumLookup(ignoreCase = true, unknown = "NORMAL")
+	public enum Priority {
+		LOW,
+		NORMAL,
+		HIGH,
+		@XmlParser.Name(name = "!")
+		CRITICAL
+	}
+
+	@XmlParser.EnumLookup(strict = true)
+	public enum State {
+		OPEN,
+		CLOSED
+	}
+
+	public State state;
+	public Priority priority;
+
+	@XmlParser.Name(name = "label")
+	public List<Priority> labels;
+}